@@ -0,0 +1,161 @@
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adgangskontroll per rute: en grense for hvor mange forespørsler som
+ * behandles samtidig, og en kort kø foran. Er både grensen og køen full,
+ * eller venter en forespørsel for lenge, svares det straks med 503 og
+ * Retry-After i stedet for å la klienten vente til den gir opp.
+ * 
+ * Legges som Filter på kontekstene, så det virker med både HttpServer og
+ * NioHttpServer. Én instans kan deles av flere kontekster som konkurrerer om
+ * det samme (f.eks. alle /api/analytics/*). Ruter uten filter (/health) blir
+ * aldri avvist, og billige oppslag har sin egen, mye høyere grense, så dyre
+ * skanninger ikke kan fortrenge dem. Det forutsetter at serveren har en
+ * executor; uten en behandles alt etter hverandre på én tråd uansett.
+ * Deler en kontekst dyre og billige metoder (GET og POST på /api/students),
+ * begrenses hver metode for seg med onlyFor.
+ * 
+ * Med adaptiv grense justeres grensen etter målt svartid, som Gradient2 i
+ * Netflix' concurrency-limits: stiger svartiden over det langsiktige
+ * gjennomsnittet, er køen i serveren (CPU, disk) i ferd med å vokse, og
+ * grensen senkes; ellers økes den forsiktig.
+ * 
+ * Grensene kan overstyres med -Dadmission.scans=<n>, -Dadmission.lookups=<n>
+ * og -Dadmission.wait=<millisekunder>.
+ */
+public final class AdmissionControl extends Filter {
+    
+    private static final int CORES = Runtime.getRuntime().availableProcessors();
+    private static final long MAX_WAIT_MILLIS = Long.getLong("admission.wait", 500);
+    
+    // Gradient: glatting av ny grense, og toleranse før økt svartid regnes som kø
+    private static final double SMOOTHING = 0.2;
+    private static final double TOLERANCE = 1.5;
+    private static final double LONG_RTT_ALPHA = 2.0 / (600 + 1);
+    
+    private final String route;
+    private final String method;
+    private final boolean adaptive;
+    private final int minLimit;
+    private final int maxLimit;
+    private final int maxQueue;
+    private final long maxWaitNanos;
+    
+    // Beskyttet av this
+    private double limit;
+    private int inFlight;
+    private int waiting;
+    private double longRttNanos;
+    
+    private AdmissionControl(String route, String method, boolean adaptive, int initialLimit, int minLimit,
+                             int maxLimit, int maxQueue, long maxWaitMillis) {
+        this.route = route;
+        this.method = method;
+        this.adaptive = adaptive;
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.maxQueue = maxQueue;
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+    }
+    
+    /** Dyre ruter (fulle skanninger, filsøk, analyse): adaptiv grense rundt antall kjerner. */
+    public static AdmissionControl forScans(String route) {
+        int limit = Integer.getInteger("admission.scans", CORES);
+        return new AdmissionControl(route, null, true, limit, 1, Math.max(limit, 4 * CORES), 2 * limit, MAX_WAIT_MILLIS);
+    }
+    
+    /** Billige oppslag: høy fast grense, så de bare avvises når serveren er helt overbelastet. */
+    public static AdmissionControl forLookups(String route) {
+        int limit = Integer.getInteger("admission.lookups", 256);
+        return new AdmissionControl(route, null, false, limit, limit, limit, limit, MAX_WAIT_MILLIS);
+    }
+    
+    /** Samme grense, men bare for én HTTP-metode; andre metoder slipper forbi uten å telle. */
+    public AdmissionControl onlyFor(String method) {
+        return new AdmissionControl(route, method, adaptive, (int) limit, minLimit, maxLimit, maxQueue,
+            TimeUnit.NANOSECONDS.toMillis(maxWaitNanos));
+    }
+    
+    @Override
+    public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+        if (method != null && !method.equals(exchange.getRequestMethod())) {
+            chain.doFilter(exchange);
+            return;
+        }
+        if (!acquire()) {
+            exchange.getResponseHeaders().set("Retry-After", String.valueOf(retryAfterSeconds()));
+            Http.sendResponse(exchange, 503, "{\"error\":\"Server is overloaded\"}");
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            chain.doFilter(exchange);
+        } finally {
+            release(System.nanoTime() - start);
+        }
+    }
+    
+    @Override
+    public String description() {
+        return "Adgangskontroll for " + (method == null ? "" : method + " ") + route;
+    }
+    
+    private synchronized boolean acquire() {
+        if (inFlight < (int) limit) {
+            inFlight++;
+            return true;
+        }
+        if (waiting >= maxQueue) {
+            return false;
+        }
+        
+        waiting++;
+        try {
+            long deadline = System.nanoTime() + maxWaitNanos;
+            while (inFlight >= (int) limit) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            inFlight++;
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            waiting--;
+        }
+    }
+    
+    private synchronized void release(long rttNanos) {
+        boolean saturated = inFlight >= (int) limit / 2;
+        inFlight--;
+        
+        longRttNanos = longRttNanos == 0 ? rttNanos : longRttNanos + LONG_RTT_ALPHA * (rttNanos - longRttNanos);
+        if (adaptive) {
+            // Etter en topp er det langsiktige snittet for høyt; la det synke mot dagens svartid
+            if (longRttNanos > 2 * rttNanos) {
+                longRttNanos *= 0.95;
+            }
+            double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * longRttNanos / rttNanos));
+            // Øk bare når grensen faktisk er i bruk, ellers vokser den uten grunn
+            if (gradient < 1.0 || saturated) {
+                double target = limit * gradient + Math.sqrt(limit);
+                limit = Math.max(minLimit, Math.min(maxLimit, limit * (1 - SMOOTHING) + target * SMOOTHING));
+            }
+        }
+        notifyAll();
+    }
+    
+    /** Omtrent hvor lenge køen foran trenger for å tømmes, minst ett sekund. */
+    private synchronized long retryAfterSeconds() {
+        double seconds = longRttNanos / 1e9 * (waiting + 1) / Math.max(1, (int) limit);
+        return Math.max(1, (long) Math.ceil(seconds));
+    }
+}
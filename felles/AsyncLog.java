@@ -0,0 +1,144 @@
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Logging utenfor forespørselsstien: handlerne legger meldingen i en ferdig
+ * allokert ringbuffer og går videre, og én bakgrunnstråd tømmer bufferet og
+ * skriver alt som har samlet seg med én write og én flush.
+ * 
+ * System.out er en PrintStream med lås, så println fra mange handlere samtidig
+ * blir en kø foran terminalen eller filen. Her er det eneste felles punktet
+ * en compareAndSet på skriveposisjonen. Er bufferet fullt fordi utdataene ikke
+ * henger med, forkastes meldingen og telles i stedet; antallet skrives i loggen
+ * når det er plass igjen.
+ * 
+ * Størrelsen settes med -Dlog.buffer=<antall meldinger> (standard 8192, rundes
+ * opp til en potens av 2). Meldinger som står i bufferet når JVM-en avslutter,
+ * skrives ut av en shutdown hook.
+ */
+public final class AsyncLog {
+    
+    private static final long DRAIN_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final int MAX_BATCH_BYTES = 64 * 1024;
+    
+    private static final int capacity =
+        1 << (32 - Integer.numberOfLeadingZeros(Math.max(2, Integer.getInteger("log.buffer", 8192)) - 1));
+    private static final int mask = capacity - 1;
+    private static final AtomicReferenceArray<String> messages = new AtomicReferenceArray<>(capacity);
+    private static final boolean[] errors = new boolean[capacity];
+    
+    // Neste ledige plass (skrivere) og neste plass som skal skrives ut (bakgrunnstråden)
+    private static final AtomicLong tail = new AtomicLong();
+    private static volatile long head;
+    
+    private static final LongAdder dropped = new LongAdder();
+    private static final PrintStream out = System.out;
+    private static final PrintStream err = System.err;
+    private static volatile boolean closing;
+    private static final Thread drainer;
+    
+    static {
+        drainer = new Thread(AsyncLog::drainLoop, "async-log");
+        drainer.setDaemon(true);
+        drainer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(AsyncLog::close));
+    }
+    
+    private AsyncLog() {
+    }
+    
+    /** Som System.out.println, men blokkerer aldri. */
+    public static void info(String message) {
+        offer(message, false);
+    }
+    
+    /** Som System.err.println, men blokkerer aldri. */
+    public static void error(String message) {
+        offer(message, true);
+    }
+    
+    /** Antall meldinger som er forkastet fordi bufferet var fullt. */
+    public static long dropped() {
+        return dropped.sum();
+    }
+    
+    private static void offer(String message, boolean error) {
+        long slot;
+        do {
+            slot = tail.get();
+            if (slot - head >= capacity) {
+                dropped.increment();
+                return;
+            }
+        } while (!tail.compareAndSet(slot, slot + 1));
+        
+        int index = (int) (slot & mask);
+        errors[index] = error;
+        // null betyr "ikke skrevet ennå" for bakgrunnstråden, så den skrives som println gjør
+        messages.setRelease(index, message == null ? "null" : message); // publiserer også errors[index]
+    }
+    
+    private static void drainLoop() {
+        ByteArrayOutputStream outBatch = new ByteArrayOutputStream(MAX_BATCH_BYTES);
+        ByteArrayOutputStream errBatch = new ByteArrayOutputStream(1024);
+        long reportedDropped = 0;
+        while (true) {
+            boolean stopping = closing;
+            long next = head;
+            while (outBatch.size() + errBatch.size() < MAX_BATCH_BYTES) {
+                int index = (int) (next & mask);
+                String message = messages.getAcquire(index);
+                if (message == null) {
+                    break; // ikke skrevet ennå (eller bufferet er tomt)
+                }
+                ByteArrayOutputStream batch = errors[index] ? errBatch : outBatch;
+                batch.writeBytes(message.getBytes(StandardCharsets.UTF_8));
+                batch.write('\n');
+                messages.setPlain(index, null);
+                head = ++next; // frigjør plassen for skriverne
+            }
+            
+            long droppedNow = dropped.sum();
+            if (droppedNow != reportedDropped) {
+                errBatch.writeBytes(("[logg] " + (droppedNow - reportedDropped)
+                    + " meldinger forkastet, bufferet var fullt\n").getBytes(StandardCharsets.UTF_8));
+                reportedDropped = droppedNow;
+            }
+            
+            boolean wrote = write(out, outBatch) | write(err, errBatch);
+            if (!wrote) {
+                if (stopping) {
+                    return;
+                }
+                LockSupport.parkNanos(DRAIN_INTERVAL_NANOS);
+            }
+        }
+    }
+    
+    private static boolean write(PrintStream stream, ByteArrayOutputStream batch) {
+        if (batch.size() == 0) {
+            return false;
+        }
+        stream.write(batch.toByteArray(), 0, batch.size());
+        stream.flush();
+        batch.reset();
+        return true;
+    }
+    
+    /** Skriver ut det som står igjen i bufferet før JVM-en avslutter. */
+    private static void close() {
+        closing = true;
+        LockSupport.unpark(drainer);
+        try {
+            drainer.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
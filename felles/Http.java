@@ -0,0 +1,90 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Felles HTTP-hjelpemetoder for alle serverne: JSON-svar, escaping og
+ * query-parametere. Tidligere hadde hver server sin egen kopi av disse.
+ */
+public final class Http {
+    
+    private Http() {
+    }
+    
+    /**
+     * Lager HTTP-serveren for porten. Standard er com.sun.net.httpserver;
+     * med -Dhttp.server=nio brukes NioHttpServer, med de samme handlerne.
+     * Alle kontekster får JFR-hendelsen for forespørsler (se JfrEvents).
+     */
+    public static HttpServer createServer(int port) throws IOException {
+        InetSocketAddress address = new InetSocketAddress(port);
+        if ("nio".equals(System.getProperty("http.server"))) {
+            return JfrEvents.instrument(NioHttpServer.create(address));
+        }
+        return JfrEvents.instrument(HttpServer.create(address, 0));
+    }
+    
+    public static void sendResponse(HttpExchange exchange, int statusCode, String response)
+            throws IOException {
+        sendResponse(exchange, statusCode, response.getBytes(StandardCharsets.UTF_8));
+    }
+    
+    public static void sendResponse(HttpExchange exchange, int statusCode, byte[] responseBytes)
+            throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
+        
+        // 204 skal ikke ha kropp; -1 gir ingen Content-Length og ingen advarsel fra HttpServer
+        exchange.sendResponseHeaders(statusCode, statusCode == 204 ? -1 : responseBytes.length);
+        
+        OutputStream os = exchange.getResponseBody();
+        if (statusCode != 204) {
+            os.write(responseBytes);
+        }
+        os.close();
+    }
+    
+    /** Escaper en streng for bruk inne i en JSON-streng (inkludert andre kontrolltegn). */
+    public static String escapeJSON(String str) {
+        if (str == null) return "";
+        StringBuilder sb = null;
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            String replacement;
+            switch (c) {
+                case '\\': replacement = "\\\\"; break;
+                case '"':  replacement = "\\\""; break;
+                case '\n': replacement = "\\n"; break;
+                case '\r': replacement = "\\r"; break;
+                case '\t': replacement = "\\t"; break;
+                default:
+                    replacement = c < 0x20 ? String.format("\\u%04x", (int) c) : null;
+            }
+            if (replacement != null) {
+                if (sb == null) {
+                    sb = new StringBuilder(str.length() + 16).append(str, 0, i);
+                }
+                sb.append(replacement);
+            } else if (sb != null) {
+                sb.append(c);
+            }
+        }
+        return sb == null ? str : sb.toString();
+    }
+    
+    /** Henter og URL-dekoder en parameter fra en rå query-streng, eller null. */
+    public static String queryParam(String query, String paramName) {
+        if (query == null) return null;
+        for (String param : query.split("&")) {
+            String[] kv = param.split("=", 2);
+            if (kv.length > 1 && kv[0].equals(paramName)) {
+                return URLDecoder.decode(kv[1], StandardCharsets.UTF_8);
+            }
+        }
+        return null;
+    }
+}
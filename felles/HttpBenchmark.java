@@ -0,0 +1,145 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Benchmark: mange små GET-forespørsler mot én eller flere kjørende servere,
+ * for å sammenligne HttpServer med NioHttpServer (-Dhttp.server=nio).
+ * 
+ * Hver klienttråd holder én keep-alive-forbindelse og sender en gruppe på
+ * <pipeline> forespørsler før den leser svarene. Med pipeline 1 venter den
+ * på hvert svar, slik en vanlig klient gjør.
+ * 
+ * Bruk (fra oppgave1, begge servere med samme data):
+ *   javac -sourcepath ../felles -d . StudentAPI.java ../felles/HttpBenchmark.java
+ *   java StudentAPI 8000 ../testdata/data/studenter.csv &
+ *   java -Dhttp.server=nio StudentAPI 8100 ../testdata/data/studenter.csv &
+ *   java HttpBenchmark <sti> <port> [port ...] [-c forbindelser] [-p pipeline] [-s sekunder]
+ * 
+ * Eksempel:
+ *   java HttpBenchmark /api/students/101 8000 8100 -c 32 -p 16
+ */
+public class HttpBenchmark {
+    
+    private static final int WARMUP_SECONDS = 3;
+    
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Bruk: java HttpBenchmark <sti> <port> [port ...] "
+                + "[-c forbindelser] [-p pipeline] [-s sekunder]");
+            System.exit(1);
+        }
+        
+        String path = args[0];
+        List<Integer> ports = new ArrayList<>();
+        int connections = 16;
+        int pipeline = 1;
+        int seconds = 10;
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i]) {
+                case "-c": connections = Integer.parseInt(args[++i]); break;
+                case "-p": pipeline = Integer.parseInt(args[++i]); break;
+                case "-s": seconds = Integer.parseInt(args[++i]); break;
+                default: ports.add(Integer.parseInt(args[i]));
+            }
+        }
+        
+        System.out.printf("GET %s, %d forbindelser, pipeline %d, %d s%n", path, connections, pipeline, seconds);
+        for (int port : ports) {
+            run(port, path, connections, pipeline, WARMUP_SECONDS);
+            long[] result = run(port, path, connections, pipeline, seconds);
+            long requests = result[0];
+            System.out.printf("Port %5d: %10.0f forespørsler/s  %8.3f ms per gruppe  %d feil%n",
+                port, requests / (double) seconds,
+                result[1] / 1e6 / Math.max(1, requests / pipeline), result[2]);
+        }
+    }
+    
+    /** Returnerer {antall svar, sum av ventetid per gruppe i ns, antall feil}. */
+    private static long[] run(int port, String path, int connections, int pipeline, int seconds)
+            throws InterruptedException {
+        byte[] request = ("GET " + path + " HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+        byte[] batch = new byte[request.length * pipeline];
+        for (int i = 0; i < pipeline; i++) {
+            System.arraycopy(request, 0, batch, i * request.length, request.length);
+        }
+        
+        LongAdder responses = new LongAdder();
+        LongAdder latency = new LongAdder();
+        LongAdder errors = new LongAdder();
+        AtomicBoolean stop = new AtomicBoolean();
+        List<Thread> clients = new ArrayList<>();
+        for (int c = 0; c < connections; c++) {
+            Thread client = new Thread(() -> {
+                while (!stop.get()) {
+                    try (Socket socket = new Socket("localhost", port)) {
+                        socket.setTcpNoDelay(true);
+                        OutputStream out = socket.getOutputStream();
+                        InputStream in = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+                        while (!stop.get()) {
+                            long start = System.nanoTime();
+                            out.write(batch);
+                            out.flush();
+                            for (int i = 0; i < pipeline; i++) {
+                                if (readResponse(in) != 200) {
+                                    errors.increment();
+                                }
+                            }
+                            latency.add(System.nanoTime() - start);
+                            responses.add(pipeline);
+                        }
+                    } catch (IOException e) {
+                        errors.increment();
+                    }
+                }
+            });
+            client.start();
+            clients.add(client);
+        }
+        
+        Thread.sleep(seconds * 1000L);
+        stop.set(true);
+        for (Thread client : clients) {
+            client.join();
+        }
+        return new long[] {responses.sum(), latency.sum(), errors.sum()};
+    }
+    
+    /** Leser ett svar med Content-Length og returnerer statuskoden. */
+    private static int readResponse(InputStream in) throws IOException {
+        String statusLine = readLine(in);
+        int status = Integer.parseInt(statusLine.split(" ")[1]);
+        int contentLength = 0;
+        String line;
+        while (!(line = readLine(in)).isEmpty()) {
+            if (line.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+                contentLength = Integer.parseInt(line.substring(15).trim());
+            }
+        }
+        while (contentLength > 0) {
+            long skipped = in.skip(contentLength);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            contentLength -= skipped;
+        }
+        return status;
+    }
+    
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                throw new EOFException();
+            }
+            if (b != '\r') {
+                line.append((char) b);
+            }
+        }
+        return line.toString();
+    }
+}
@@ -0,0 +1,254 @@
+import com.sun.net.httpserver.*;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executor;
+import jdk.jfr.*;
+
+/**
+ * Egne hendelser for JDK Flight Recorder, så et opptak viser hvor tiden går i
+ * serverne: hver HTTP-forespørsel (rute, status, bytes), hver innlasting og
+ * lagring av en tabellfil (fil, rader, bytes) og hver analyseberegning. De
+ * ligger i samme opptak som GC, låser og fil-I/O fra JVM-en selv.
+ * 
+ * Uten et opptak som har slått dem på, er isEnabled() og shouldCommit()
+ * konstant false, og feltene fylles ikke ut. Hendelsen lever bare i metoden,
+ * så JIT-en fjerner allokeringen. Opptak kan startes i en kjørende server:
+ *   jcmd <pid> JFR.start name=data1500 settings=profile duration=60s filename=opptak.jfr
+ *   jfr print --events data1500.HttpRequest opptak.jfr
+ * eller ved oppstart med -XX:StartFlightRecording=duration=60s,filename=opptak.jfr.
+ * 
+ * Http.createServer legger forespørselsfilteret på alle kontekster, med både
+ * HttpServer og NioHttpServer.
+ */
+public final class JfrEvents {
+    
+    private JfrEvents() {
+    }
+    
+    @Name("data1500.HttpRequest")
+    @Label("HTTP Request")
+    @Description("En forespørsel fra den kom inn til svaret var skrevet")
+    @Category({"DATA1500", "HTTP"})
+    @StackTrace(false)
+    public static final class Request extends Event {
+        @Label("Route")
+        String route;
+        
+        @Label("Method")
+        String method;
+        
+        @Label("Path")
+        String path;
+        
+        @Label("Status")
+        int status;
+        
+        @Label("Response Size")
+        @DataAmount
+        long bytes;
+    }
+    
+    @Name("data1500.FileIO")
+    @Label("Table File I/O")
+    @Description("Innlasting, lagring eller avspilling av en tabellfil")
+    @Category({"DATA1500", "Storage"})
+    @StackTrace(false)
+    public static final class FileIo extends Event {
+        @Label("Operation")
+        String operation;
+        
+        @Label("File")
+        String file;
+        
+        @Label("Rows")
+        int rows;
+        
+        @Label("Size")
+        @DataAmount
+        long bytes;
+        
+        /** Starter tidtakingen; avsluttes med finish. */
+        public static FileIo start(String operation, String file) {
+            FileIo event = new FileIo();
+            event.operation = operation;
+            event.file = file;
+            event.begin();
+            return event;
+        }
+        
+        /** For lesing: størrelsen hentes fra filen, men bare hvis hendelsen skal skrives. */
+        public void finish(int rows) {
+            end();
+            if (shouldCommit()) {
+                this.rows = rows;
+                this.bytes = new File(file).length();
+                commit();
+            }
+        }
+        
+        public void finish(int rows, long bytes) {
+            end();
+            if (shouldCommit()) {
+                this.rows = rows;
+                this.bytes = bytes;
+                commit();
+            }
+        }
+    }
+    
+    @Name("data1500.Analytics")
+    @Label("Analytics Computation")
+    @Description("En beregning over resultatradene, som aggregater, topplister eller et analysesvar")
+    @Category({"DATA1500", "Analytics"})
+    @StackTrace(false)
+    public static final class Analytics extends Event {
+        @Label("Computation")
+        String computation;
+        
+        @Label("Rows")
+        int rows;
+        
+        @Label("Parallel")
+        boolean parallel;
+        
+        public static Analytics start(String computation) {
+            Analytics event = new Analytics();
+            event.computation = computation;
+            event.begin();
+            return event;
+        }
+        
+        public void finish(int rows, boolean parallel) {
+            end();
+            if (shouldCommit()) {
+                this.rows = rows;
+                this.parallel = parallel;
+                commit();
+            }
+        }
+    }
+    
+    private static final Filter REQUESTS = new Filter() {
+        @Override
+        public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+            Request event = new Request();
+            if (!event.isEnabled()) {
+                chain.doFilter(exchange);
+                return;
+            }
+            
+            CountingOutputStream body = new CountingOutputStream(exchange.getResponseBody());
+            exchange.setStreams(null, body);
+            event.begin();
+            try {
+                chain.doFilter(exchange);
+            } finally {
+                event.end();
+                if (event.shouldCommit()) {
+                    event.route = exchange.getHttpContext().getPath();
+                    event.method = exchange.getRequestMethod();
+                    event.path = exchange.getRequestURI().getPath();
+                    event.status = exchange.getResponseCode();
+                    event.bytes = body.count;
+                    event.commit();
+                }
+            }
+        }
+        
+        @Override
+        public String description() {
+            return "JFR-hendelse per forespørsel";
+        }
+    };
+    
+    /** Teller bytes i svarkroppen; hver write sendes urørt videre. */
+    private static final class CountingOutputStream extends FilterOutputStream {
+        long count;
+        
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+        
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+        
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            out.write(bytes, offset, length);
+            count += length;
+        }
+    }
+    
+    /** Pakker inn serveren så hver kontekst som opprettes, får forespørselsfilteret først. */
+    public static HttpServer instrument(HttpServer server) {
+        return new InstrumentedServer(server);
+    }
+    
+    private static final class InstrumentedServer extends HttpServer {
+        private final HttpServer server;
+        
+        InstrumentedServer(HttpServer server) {
+            this.server = server;
+        }
+        
+        @Override
+        public HttpContext createContext(String path, HttpHandler handler) {
+            HttpContext context = server.createContext(path, handler);
+            context.getFilters().add(REQUESTS);
+            return context;
+        }
+        
+        @Override
+        public HttpContext createContext(String path) {
+            HttpContext context = server.createContext(path);
+            context.getFilters().add(REQUESTS);
+            return context;
+        }
+        
+        @Override
+        public void bind(InetSocketAddress address, int backlog) throws IOException {
+            server.bind(address, backlog);
+        }
+        
+        @Override
+        public void start() {
+            server.start();
+        }
+        
+        @Override
+        public void setExecutor(Executor executor) {
+            server.setExecutor(executor);
+        }
+        
+        @Override
+        public Executor getExecutor() {
+            return server.getExecutor();
+        }
+        
+        @Override
+        public void stop(int delaySeconds) {
+            server.stop(delaySeconds);
+        }
+        
+        @Override
+        public void removeContext(String path) {
+            server.removeContext(path);
+        }
+        
+        @Override
+        public void removeContext(HttpContext context) {
+            server.removeContext(context);
+        }
+        
+        @Override
+        public InetSocketAddress getAddress() {
+            return server.getAddress();
+        }
+    }
+}
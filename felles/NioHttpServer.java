@@ -0,0 +1,1215 @@
+import com.sun.net.httpserver.*;
+import java.io.*;
+import java.net.BindException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ikke-blokkerende HTTP/1.1-server på java.nio med én selector-tråd.
+ * 
+ * Har samme API som com.sun.net.httpserver.HttpServer, så serverne bytter
+ * til denne med -Dhttp.server=nio (se Http.createServer) uten å endre
+ * handlerne. Forbindelser holdes åpne (keep-alive), og forespørsler som
+ * sendes etter hverandre uten å vente på svar (pipelining) besvares i
+ * rekkefølge.
+ * 
+ * Lesebufferne er direkte buffere fra en pool. En forbindelse låner et
+ * buffer bare mens den har uleste data, så ledige keep-alive-forbindelser
+ * ikke holder på hvert sitt. Et svar som skrives med ett kall til write
+ * (slik Http.sendResponse gjør) kopieres ikke: arrayet sendes sammen med
+ * headeren i én samlet write, og må ikke endres etterpå.
+ * 
+ * Request-kroppen samles i et array som vokser etter hvert som bytene kommer,
+ * ikke ut fra Content-Length alene. Kropper med "Transfer-Encoding: chunked"
+ * dekodes før handleren får dem; andre overføringskodinger gir 501. Én kropp
+ * kan være høyst -Dhttp.nio.maxBody=<bytes> (standard 16 KB, som handlerne; 413 ellers), og
+ * kropper som ennå ikke er sendt til en handler, kan til sammen være høyst
+ * -Dhttp.nio.maxPendingBodies=<bytes> (standard 16 MB; 503 ellers). Mottak av
+ * resultater i QuizAnalyticsAPI tar opptil 1 MB og trenger en høyere maxBody.
+ * 
+ * Svar som ikke er skrevet til socketen ennå, ligger i utkøen til
+ * forbindelsen. Er det mer enn -Dhttp.nio.highWater=<bytes> (standard 256 KB)
+ * der, blokkerer write/flush/close i handleren til selectoren har fått køen
+ * under halvparten, som den blokkerende strømmen i HttpServer. En klient som
+ * ikke leser, bremser dermed handleren (SSE, replikeringsloggen) i stedet for
+ * å fylle heapen. Leser klienten ingenting på -Dhttp.nio.writeTimeout=<ms>
+ * (standard 30 s), lukkes forbindelsen og write kaster IOException.
+ * 
+ * Uten executor kjøres handlerne direkte på selector-tråden, slik
+ * standardserveren kjører dem på sin dispatcher-tråd. Det passer korte
+ * oppslag; handlere som blokkerer (SSE, lange skanninger) trenger en executor.
+ * På selector-tråden blokkerer ikke write, siden det er den som tømmer køen.
+ */
+public class NioHttpServer extends HttpServer {
+    
+    private static final int BUFFER_SIZE = 16 * 1024; // også maks størrelse på request-header
+    private static final int MAX_POOLED_BUFFERS = Integer.getInteger("http.nio.buffers", 1024);
+    private static final int MAX_BODY_BYTES = Integer.getInteger("http.nio.maxBody", 16 * 1024);
+    private static final long MAX_PENDING_BODY_BYTES = Long.getLong("http.nio.maxPendingBodies", 16 << 20);
+    private static final long IDLE_TIMEOUT_MILLIS = Long.getLong("http.nio.idleTimeout", 30_000);
+    private static final long HIGH_WATER_BYTES = Long.getLong("http.nio.highWater", 256 * 1024);
+    private static final long LOW_WATER_BYTES = HIGH_WATER_BYTES / 2;
+    private static final long WRITE_TIMEOUT_NANOS =
+        TimeUnit.MILLISECONDS.toNanos(Long.getLong("http.nio.writeTimeout", 30_000));
+    
+    // Hvor dekodingen av en chunked kropp er kommet
+    private static final int CHUNK_SIZE = 0;
+    private static final int CHUNK_DATA = 1;
+    private static final int CHUNK_END = 2;
+    private static final int CHUNK_TRAILER = 3;
+    private static final int MAX_CHUNK_LINE = 1024;
+    
+    // Markører i utkøen: svaret er ferdig skrevet / lukk forbindelsen
+    private static final ByteBuffer END_OF_RESPONSE = ByteBuffer.allocate(0);
+    private static final ByteBuffer CLOSE = ByteBuffer.allocate(0);
+    
+    private final Map<String, Context> contexts = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Connection> ready = new ConcurrentLinkedQueue<>();
+    
+    // Brukes bare av selector-tråden
+    private final ArrayDeque<ByteBuffer> bufferPool = new ArrayDeque<>();
+    private final Set<Connection> connections = new HashSet<>();
+    private final ByteBuffer[] gather = new ByteBuffer[16];
+    private long pendingBodyBytes; // summen av body.length for forespørsler som ikke er sendt videre
+    
+    private ServerSocketChannel serverChannel;
+    private Selector selector;
+    private Thread selectorThread;
+    private volatile Executor executor;
+    private volatile boolean running;
+    
+    public static NioHttpServer create(InetSocketAddress address) throws IOException {
+        NioHttpServer server = new NioHttpServer();
+        server.bind(address, 0);
+        return server;
+    }
+    
+    @Override
+    public void bind(InetSocketAddress address, int backlog) throws IOException {
+        if (serverChannel != null) {
+            throw new BindException("Serveren er allerede bundet");
+        }
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(address, backlog);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+    
+    @Override
+    public void start() {
+        if (serverChannel == null || selectorThread != null) {
+            throw new IllegalStateException("Serveren er ikke bundet, eller er allerede startet");
+        }
+        running = true;
+        selectorThread = new Thread(this::runSelector, "nio-selector");
+        selectorThread.start();
+    }
+    
+    @Override
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+    
+    @Override
+    public Executor getExecutor() {
+        return executor;
+    }
+    
+    @Override
+    public void stop(int delaySeconds) {
+        if (selectorThread == null) {
+            return;
+        }
+        running = false;
+        selector.wakeup();
+        try {
+            selectorThread.join(Math.max(delaySeconds, 1) * 1000L);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    @Override
+    public HttpContext createContext(String path, HttpHandler handler) {
+        if (!path.startsWith("/")) {
+            throw new IllegalArgumentException("Stien må starte med /: " + path);
+        }
+        Context context = new Context(path, handler);
+        if (contexts.putIfAbsent(path, context) != null) {
+            throw new IllegalArgumentException("Konteksten finnes allerede: " + path);
+        }
+        return context;
+    }
+    
+    @Override
+    public HttpContext createContext(String path) {
+        return createContext(path, null);
+    }
+    
+    @Override
+    public void removeContext(String path) {
+        if (contexts.remove(path) == null) {
+            throw new IllegalArgumentException("Ukjent kontekst: " + path);
+        }
+    }
+    
+    @Override
+    public void removeContext(HttpContext context) {
+        removeContext(context.getPath());
+    }
+    
+    @Override
+    public InetSocketAddress getAddress() {
+        try {
+            return (InetSocketAddress) serverChannel.getLocalAddress();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+    
+    /** Lengste kontekst-sti som er et prefiks av stien, som i HttpServer. */
+    private Context findContext(String path) {
+        Context best = null;
+        for (Context context : contexts.values()) {
+            if (path.startsWith(context.path) && (best == null || context.path.length() > best.path.length())) {
+                best = context;
+            }
+        }
+        return best;
+    }
+    
+    // ==================== Selector-løkken ====================
+    
+    private void runSelector() {
+        long lastIdleCheck = System.currentTimeMillis();
+        try {
+            while (running) {
+                selector.select(1000);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid() && key.isAcceptable()) {
+                        accept();
+                    } else if (key.isValid()) {
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isWritable()) {
+                                connection.flush();
+                            }
+                            if (key.isValid() && key.isReadable()) {
+                                connection.read();
+                            }
+                        } catch (IOException | CancelledKeyException e) {
+                            connection.close();
+                        }
+                    }
+                }
+                
+                // Svar som handlere på executor-tråder har lagt i utkøen
+                Connection connection;
+                while ((connection = ready.poll()) != null) {
+                    try {
+                        connection.flush();
+                    } catch (IOException | CancelledKeyException e) {
+                        connection.close();
+                    }
+                }
+                
+                long now = System.currentTimeMillis();
+                if (now - lastIdleCheck >= 1000) {
+                    lastIdleCheck = now;
+                    for (Connection idle : new ArrayList<>(connections)) {
+                        if (!idle.busy && idle.out.isEmpty() && now - idle.lastActive > IDLE_TIMEOUT_MILLIS) {
+                            idle.close();
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Selector-tråden stoppet: " + e.getMessage());
+        } finally {
+            for (Connection connection : new ArrayList<>(connections)) {
+                connection.close();
+            }
+            try {
+                serverChannel.close();
+                selector.close();
+            } catch (IOException e) {
+                // Ingenting mer å gjøre
+            }
+        }
+    }
+    
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            Connection connection = new Connection(channel);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            connections.add(connection);
+        }
+    }
+    
+    private ByteBuffer acquireBuffer() {
+        ByteBuffer buffer = bufferPool.poll();
+        return buffer != null ? buffer : ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+    
+    private void releaseBuffer(ByteBuffer buffer) {
+        if (bufferPool.size() < MAX_POOLED_BUFFERS) {
+            buffer.clear();
+            bufferPool.push(buffer);
+        }
+    }
+    
+    /** Ugyldig forespørsel; besvares med status og lukket forbindelse. */
+    private static class HttpError extends Exception {
+        private static final long serialVersionUID = 1L;
+        
+        final int status;
+        
+        HttpError(int status, String message) {
+            super(message, null, false, false);
+            this.status = status;
+        }
+    }
+    
+    private static class Request {
+        final String method;
+        final URI uri;
+        final String protocol;
+        final Headers headers;
+        final boolean keepAlive;
+        final int bodyLength;      // -1 for chunked
+        byte[] body = new byte[0]; // vokser etter hvert som kroppen kommer
+        int filled;
+        int chunkState = CHUNK_SIZE;
+        int chunkRemaining;
+        boolean continueSent;
+        
+        Request(String method, URI uri, String protocol, Headers headers, boolean keepAlive, int bodyLength) {
+            this.method = method;
+            this.uri = uri;
+            this.protocol = protocol;
+            this.headers = headers;
+            this.keepAlive = keepAlive;
+            this.bodyLength = bodyLength;
+        }
+    }
+    
+    /**
+     * Én TCP-forbindelse. Lesing, parsing og skriving skjer bare på
+     * selector-tråden; handlere på andre tråder legger svaret i utkøen
+     * (out) og vekker selectoren.
+     */
+    private final class Connection {
+        final SocketChannel channel;
+        final ConcurrentLinkedQueue<ByteBuffer> out = new ConcurrentLinkedQueue<>();
+        final AtomicLong queuedBytes = new AtomicLong(); // uskrevne bytes i out
+        final Object drained = new Object();             // handleren venter her i awaitDrained
+        volatile boolean waiting;
+        volatile boolean aborted;                        // lukkes av selectoren uten å tømme out
+        SelectionKey key;
+        ByteBuffer in;          // lånt fra poolen, i skrivemodus
+        Request pending;        // headeren er lest, venter på resten av kroppen
+        boolean busy;           // en forespørsel er hos handleren
+        boolean inputClosed;
+        boolean closing;
+        boolean writeBlocked;
+        volatile boolean closed;
+        long lastActive = System.currentTimeMillis();
+        
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+        
+        void read() throws IOException {
+            if (in == null) {
+                in = acquireBuffer();
+            }
+            if (channel.read(in) < 0) {
+                inputClosed = true;
+            } else {
+                lastActive = System.currentTimeMillis();
+            }
+            process();
+        }
+        
+        /** Tolker og sender videre så mange hele forespørsler som mulig, én om gangen. */
+        void process() throws IOException {
+            if (in != null) {
+                in.flip();
+                try {
+                    while (!busy && !closing && !closed && in.hasRemaining()) {
+                        if (pending == null) {
+                            pending = parseHeader();
+                            if (pending == null) {
+                                if (in.position() == 0 && in.limit() == in.capacity()) {
+                                    throw new HttpError(431, "Request header too large");
+                                }
+                                break;
+                            }
+                        }
+                        if (!readBody(pending)) {
+                            break;
+                        }
+                        Request request = pending;
+                        discardPending();
+                        dispatch(request);
+                    }
+                } catch (HttpError e) {
+                    discardPending();
+                    closing = true;
+                    sendError(e.status, e.getMessage());
+                } finally {
+                    if (in != null) {
+                        in.compact();
+                        if (in.position() == 0) {
+                            releaseBuffer(in);
+                            in = null;
+                        }
+                    }
+                }
+            }
+            
+            if (pending != null && !pending.continueSent && "100-continue".equalsIgnoreCase(pending.headers.getFirst("Expect"))) {
+                pending.continueSent = true;
+                out.add(ByteBuffer.wrap("HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1)));
+                ready.add(this);
+            }
+            if (inputClosed && !busy && !closing) {
+                closing = true;
+                out.add(CLOSE);
+                ready.add(this);
+            }
+            updateInterest();
+        }
+        
+        /** Flytter det som er kommet av kroppen fra in. Sann når hele kroppen er lest. */
+        private boolean readBody(Request request) throws HttpError {
+            if (request.bodyLength >= 0) {
+                int n = Math.min(in.remaining(), request.bodyLength - request.filled);
+                growBody(request, request.filled + n);
+                in.get(request.body, request.filled, n);
+                request.filled += n;
+                return request.filled == request.bodyLength;
+            }
+            while (true) {
+                switch (request.chunkState) {
+                    case CHUNK_SIZE: {
+                        String line = readLine();
+                        if (line == null) {
+                            return false;
+                        }
+                        int semicolon = line.indexOf(';'); // chunk-utvidelser ignoreres
+                        String size = (semicolon >= 0 ? line.substring(0, semicolon) : line).trim();
+                        long length;
+                        try {
+                            length = size.isEmpty() || size.length() > 8 ? -1 : Long.parseLong(size, 16);
+                        } catch (NumberFormatException e) {
+                            length = -1;
+                        }
+                        if (length < 0) {
+                            throw new HttpError(400, "Bad chunk size");
+                        }
+                        if (request.filled + length > MAX_BODY_BYTES) {
+                            throw new HttpError(413, "Request body too large");
+                        }
+                        request.chunkRemaining = (int) length;
+                        request.chunkState = length == 0 ? CHUNK_TRAILER : CHUNK_DATA;
+                        break;
+                    }
+                    case CHUNK_DATA: {
+                        int n = Math.min(in.remaining(), request.chunkRemaining);
+                        growBody(request, request.filled + n);
+                        in.get(request.body, request.filled, n);
+                        request.filled += n;
+                        request.chunkRemaining -= n;
+                        if (request.chunkRemaining > 0) {
+                            return false;
+                        }
+                        request.chunkState = CHUNK_END;
+                        break;
+                    }
+                    case CHUNK_END: {
+                        String line = readLine();
+                        if (line == null) {
+                            return false;
+                        }
+                        if (!line.isEmpty()) {
+                            throw new HttpError(400, "Bad chunk");
+                        }
+                        request.chunkState = CHUNK_SIZE;
+                        break;
+                    }
+                    default: {
+                        // Trailer-felt hoppes over; kroppen slutter med en tom linje
+                        String line = readLine();
+                        if (line == null) {
+                            return false;
+                        }
+                        if (line.isEmpty()) {
+                            return true;
+                        }
+                    }
+                }
+            }
+        }
+        
+        /** Neste linje i in uten CRLF, eller null hvis den ikke er kommet ennå. */
+        private String readLine() throws HttpError {
+            int start = in.position();
+            for (int i = start; i + 1 < in.limit(); i++) {
+                if (in.get(i) == '\r' && in.get(i + 1) == '\n') {
+                    byte[] line = new byte[i - start];
+                    in.get(line);
+                    in.position(i + 2);
+                    return new String(line, StandardCharsets.ISO_8859_1);
+                }
+            }
+            if (in.remaining() > MAX_CHUNK_LINE) {
+                throw new HttpError(400, "Bad chunk");
+            }
+            return null;
+        }
+        
+        /**
+         * Sørger for plass til minst needed bytes i kroppen. Arrayet dobles (opp
+         * til hele kroppen), så en klient som bare sender en stor Content-Length,
+         * ikke får serveren til å allokere den på forhånd.
+         */
+        private void growBody(Request request, int needed) throws HttpError {
+            int capacity = request.body.length;
+            if (needed <= capacity) {
+                return;
+            }
+            int limit = request.bodyLength >= 0 ? request.bodyLength : MAX_BODY_BYTES;
+            int grown = Math.max(needed, Math.min(Math.max(capacity * 2, 1024), limit));
+            if (pendingBodyBytes + grown - capacity > MAX_PENDING_BODY_BYTES) {
+                throw new HttpError(503, "Server is overloaded");
+            }
+            pendingBodyBytes += grown - capacity;
+            request.body = Arrays.copyOf(request.body, grown);
+        }
+        
+        /** Kroppen til pending er ikke lenger serverens ansvar (sendt videre eller forkastet). */
+        private void discardPending() {
+            if (pending != null) {
+                pendingBodyBytes -= pending.body.length;
+                pending = null;
+            }
+        }
+        
+        /** Leser request-linje og headere, eller null hvis headeren ikke er kommet ennå. */
+        private Request parseHeader() throws HttpError {
+            // Tomme linjer mellom forespørsler ignoreres (RFC 9112, 2.2)
+            while (in.hasRemaining() && (in.get(in.position()) == '\r' || in.get(in.position()) == '\n')) {
+                in.get();
+            }
+            int start = in.position();
+            int end = -1;
+            for (int i = start; i + 3 < in.limit(); i++) {
+                if (in.get(i) == '\r' && in.get(i + 1) == '\n' && in.get(i + 2) == '\r' && in.get(i + 3) == '\n') {
+                    end = i;
+                    break;
+                }
+            }
+            if (end < 0) {
+                return null;
+            }
+            byte[] head = new byte[end - start];
+            in.get(head);
+            in.position(end + 4);
+            
+            String[] lines = new String(head, StandardCharsets.ISO_8859_1).split("\r\n");
+            String[] requestLine = lines[0].split(" ");
+            if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/1.")) {
+                throw new HttpError(400, "Bad request line");
+            }
+            Headers headers = new Headers();
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon <= 0) {
+                    throw new HttpError(400, "Bad header");
+                }
+                headers.add(lines[i].substring(0, colon).trim(), lines[i].substring(colon + 1).trim());
+            }
+            
+            URI uri;
+            try {
+                uri = new URI(requestLine[1]);
+            } catch (URISyntaxException e) {
+                throw new HttpError(400, "Bad request URI");
+            }
+            if (uri.getPath() == null) {
+                throw new HttpError(400, "Bad request URI");
+            }
+            long bodyLength = 0;
+            String contentLength = headers.getFirst("Content-Length");
+            String transferEncoding = headers.getFirst("Transfer-Encoding");
+            if (transferEncoding != null) {
+                if (!"chunked".equalsIgnoreCase(transferEncoding) || headers.get("Transfer-Encoding").size() > 1) {
+                    throw new HttpError(501, "Unsupported Transfer-Encoding");
+                }
+                // Begge samtidig kan bety request smuggling (RFC 9112, 6.3)
+                if (contentLength != null) {
+                    throw new HttpError(400, "Both Transfer-Encoding and Content-Length");
+                }
+                bodyLength = -1;
+            } else if (contentLength != null) {
+                try {
+                    bodyLength = Long.parseLong(contentLength);
+                } catch (NumberFormatException e) {
+                    throw new HttpError(400, "Bad Content-Length");
+                }
+                if (bodyLength < 0) {
+                    throw new HttpError(400, "Bad Content-Length");
+                }
+                if (bodyLength > MAX_BODY_BYTES) {
+                    throw new HttpError(413, "Request body too large");
+                }
+            }
+            
+            String connection = headers.getFirst("Connection");
+            boolean keepAlive = "HTTP/1.1".equals(requestLine[2])
+                ? connection == null || !connection.toLowerCase().contains("close")
+                : connection != null && connection.toLowerCase().contains("keep-alive");
+            return new Request(requestLine[0], uri, requestLine[2], headers, keepAlive, (int) bodyLength);
+        }
+        
+        private void dispatch(Request request) {
+            busy = true;
+            if (!request.keepAlive) {
+                closing = true;
+            }
+            Context context = findContext(request.uri.getPath());
+            if (context == null || context.handler == null) {
+                sendError(404, "Not found", request);
+                return;
+            }
+            Exchange exchange = new Exchange(this, request, context);
+            Executor current = executor;
+            if (current == null) {
+                exchange.run();
+                return;
+            }
+            try {
+                current.execute(exchange::run);
+            } catch (RejectedExecutionException e) {
+                closing = true;
+                sendError(503, "Server is overloaded");
+            }
+        }
+        
+        private void sendError(int status, String message) {
+            sendError(status, message, null);
+        }
+        
+        private void sendError(int status, String message, Request request) {
+            byte[] body = ("{\"error\":\"" + message + "\"}").getBytes(StandardCharsets.UTF_8);
+            boolean http10KeepAlive = !closing && request != null && "HTTP/1.0".equals(request.protocol);
+            String head = "HTTP/1.1 " + status + " " + reason(status) + "\r\n"
+                + "Content-Type: application/json\r\n"
+                + "Content-Length: " + body.length + "\r\n"
+                + (closing ? "Connection: close\r\n" : "")
+                + (http10KeepAlive ? "Connection: keep-alive\r\n" : "")
+                + "\r\n";
+            send(ByteBuffer.wrap(head.getBytes(StandardCharsets.ISO_8859_1)), ByteBuffer.wrap(body),
+                closing ? CLOSE : END_OF_RESPONSE);
+        }
+        
+        /** Kan kalles fra alle tråder. */
+        void send(ByteBuffer... buffers) {
+            long bytes = 0;
+            for (ByteBuffer buffer : buffers) {
+                bytes += buffer.remaining();
+            }
+            queuedBytes.addAndGet(bytes);
+            Collections.addAll(out, buffers);
+            ready.add(this);
+            if (Thread.currentThread() != selectorThread) {
+                selector.wakeup();
+            }
+        }
+        
+        /**
+         * Blokkerer handleren mens utkøen er over HIGH_WATER_BYTES, til selectoren
+         * har fått den under LOW_WATER_BYTES. Lukker forbindelsen hvis klienten
+         * ikke har lest nok innen WRITE_TIMEOUT_NANOS.
+         */
+        void awaitDrained() throws IOException {
+            if (queuedBytes.get() <= HIGH_WATER_BYTES || Thread.currentThread() == selectorThread) {
+                return;
+            }
+            long deadline = System.nanoTime() + WRITE_TIMEOUT_NANOS;
+            synchronized (drained) {
+                waiting = true;
+                try {
+                    while (!closed && queuedBytes.get() > LOW_WATER_BYTES) {
+                        long left = deadline - System.nanoTime();
+                        if (left <= 0) {
+                            abort();
+                            throw new IOException("Klienten leser ikke svaret");
+                        }
+                        TimeUnit.NANOSECONDS.timedWait(drained, left);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Avbrutt");
+                } finally {
+                    waiting = false;
+                }
+            }
+            if (closed) {
+                throw new IOException("Forbindelsen er lukket");
+            }
+        }
+        
+        /** Ber selectoren lukke forbindelsen uten å skrive resten av utkøen. */
+        void abort() {
+            aborted = true;
+            ready.add(this);
+            selector.wakeup();
+        }
+        
+        private void signalDrained() {
+            if (waiting && (closed || queuedBytes.get() <= LOW_WATER_BYTES)) {
+                synchronized (drained) {
+                    drained.notifyAll();
+                }
+            }
+        }
+        
+        /** Skriver det som ligger i utkøen; samler flere buffere i én write. */
+        void flush() throws IOException {
+            if (aborted) {
+                close();
+                return;
+            }
+            while (!closed) {
+                ByteBuffer head = out.peek();
+                if (head == null) {
+                    writeBlocked = false;
+                    break;
+                }
+                if (head == CLOSE) {
+                    close();
+                    return;
+                }
+                if (head == END_OF_RESPONSE) {
+                    out.poll();
+                    busy = false;
+                    lastActive = System.currentTimeMillis();
+                    process(); // neste forespørsel i en pipeline
+                    continue;
+                }
+                
+                int count = 0;
+                for (ByteBuffer buffer : out) {
+                    if (buffer == END_OF_RESPONSE || buffer == CLOSE || count == gather.length) {
+                        break;
+                    }
+                    gather[count++] = buffer;
+                }
+                long written = channel.write(gather, 0, count);
+                Arrays.fill(gather, 0, count, null);
+                if (written > 0) {
+                    queuedBytes.addAndGet(-written);
+                    signalDrained();
+                }
+                
+                while ((head = out.peek()) != null && head != END_OF_RESPONSE && head != CLOSE && !head.hasRemaining()) {
+                    out.poll();
+                }
+                if (head != null && head != END_OF_RESPONSE && head != CLOSE) {
+                    writeBlocked = true; // socket-bufferet er fullt; venter på OP_WRITE
+                    break;
+                }
+            }
+            updateInterest();
+        }
+        
+        void updateInterest() {
+            if (closed || !key.isValid()) {
+                return;
+            }
+            int ops = 0;
+            if (!inputClosed && !closing && (in == null || in.hasRemaining())) {
+                ops |= SelectionKey.OP_READ;
+            }
+            if (writeBlocked) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            key.interestOps(ops);
+        }
+        
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Allerede lukket
+            }
+            if (in != null) {
+                releaseBuffer(in);
+                in = null;
+            }
+            discardPending();
+            out.clear();
+            queuedBytes.set(0);
+            signalDrained();
+            connections.remove(this);
+        }
+    }
+    
+    // ==================== HttpExchange og HttpContext ====================
+    
+    private final class Exchange extends HttpExchange {
+        private final Connection connection;
+        private final Request request;
+        private final Context context;
+        private final Headers responseHeaders = new Headers();
+        private final Map<String, Object> attributes = new HashMap<>();
+        private InputStream requestBody;
+        private OutputStream responseBody = new PendingResponse();
+        private ResponseStream response;
+        private int responseCode = -1;
+        
+        Exchange(Connection connection, Request request, Context context) {
+            this.connection = connection;
+            this.request = request;
+            this.context = context;
+            this.requestBody = new ByteArrayInputStream(request.body, 0, request.filled);
+        }
+        
+        void run() {
+            try {
+                new Filter.Chain(context.filters, context.handler).doFilter(this);
+            } catch (Throwable e) {
+                if (responseCode == -1) {
+                    AsyncLog.error("Feil i handler for " + request.uri.getPath() + ": " + e);
+                }
+                // Som HttpServer: forbindelsen lukkes hvis handleren feiler
+                connection.send(CLOSE);
+                return;
+            }
+            close();
+        }
+        
+        @Override
+        public Headers getRequestHeaders() {
+            return request.headers;
+        }
+        
+        @Override
+        public Headers getResponseHeaders() {
+            return responseHeaders;
+        }
+        
+        @Override
+        public URI getRequestURI() {
+            return request.uri;
+        }
+        
+        @Override
+        public String getRequestMethod() {
+            return request.method;
+        }
+        
+        @Override
+        public HttpContext getHttpContext() {
+            return context;
+        }
+        
+        @Override
+        public void close() {
+            try {
+                requestBody.close();
+                if (response == null) {
+                    connection.send(CLOSE); // handleren svarte aldri
+                } else {
+                    getResponseBody().close();
+                }
+            } catch (IOException e) {
+                connection.send(CLOSE);
+            }
+        }
+        
+        @Override
+        public InputStream getRequestBody() {
+            return requestBody;
+        }
+        
+        @Override
+        public OutputStream getResponseBody() {
+            return responseBody;
+        }
+        
+        @Override
+        public void sendResponseHeaders(int code, long length) throws IOException {
+            if (response != null) {
+                throw new IOException("Headerne er allerede sendt");
+            }
+            responseCode = code;
+            boolean noBody = length == -1 || code == 204 || code == 304 || code < 200;
+            boolean chunked = !noBody && length == 0 && "HTTP/1.1".equals(request.protocol);
+            boolean keepAlive = request.keepAlive && (noBody || length > 0 || chunked);
+            
+            StringBuilder head = new StringBuilder(160)
+                .append("HTTP/1.1 ").append(code).append(' ').append(reason(code)).append("\r\n");
+            for (Map.Entry<String, List<String>> header : responseHeaders.entrySet()) {
+                for (String value : header.getValue()) {
+                    head.append(header.getKey()).append(": ").append(value).append("\r\n");
+                }
+            }
+            if (length > 0) {
+                head.append("Content-Length: ").append(length).append("\r\n");
+            } else if (chunked) {
+                head.append("Transfer-Encoding: chunked\r\n");
+            } else if (noBody && code != 204 && code != 304) {
+                head.append("Content-Length: 0\r\n");
+            }
+            if (!keepAlive) {
+                head.append("Connection: close\r\n");
+            } else if ("HTTP/1.0".equals(request.protocol)) {
+                head.append("Connection: keep-alive\r\n"); // ellers venter 1.0-klienten på at vi lukker
+            }
+            head.append("\r\n");
+            
+            ByteBuffer header = ByteBuffer.wrap(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+            response = new ResponseStream(connection, header, noBody ? -1 : length, chunked, keepAlive,
+                "HEAD".equals(request.method));
+            if (length == 0 && !noBody) {
+                response.sendHeader(); // strømmende svar: headeren må ut med en gang
+            }
+        }
+        
+        @Override
+        public InetSocketAddress getRemoteAddress() {
+            try {
+                return (InetSocketAddress) connection.channel.getRemoteAddress();
+            } catch (IOException e) {
+                return null;
+            }
+        }
+        
+        @Override
+        public int getResponseCode() {
+            return responseCode;
+        }
+        
+        @Override
+        public InetSocketAddress getLocalAddress() {
+            try {
+                return (InetSocketAddress) connection.channel.getLocalAddress();
+            } catch (IOException e) {
+                return null;
+            }
+        }
+        
+        @Override
+        public String getProtocol() {
+            return request.protocol;
+        }
+        
+        @Override
+        public Object getAttribute(String name) {
+            return attributes.get(name);
+        }
+        
+        @Override
+        public void setAttribute(String name, Object value) {
+            attributes.put(name, value);
+        }
+        
+        @Override
+        public void setStreams(InputStream in, OutputStream out) {
+            if (in != null) {
+                requestBody = in;
+            }
+            if (out != null) {
+                responseBody = out;
+            }
+        }
+        
+        @Override
+        public HttpPrincipal getPrincipal() {
+            return null;
+        }
+        
+        /**
+         * Det getResponseBody() gir før headerne er sendt, som i HttpServer, så et
+         * Filter kan pakke inn strømmen med setStreams før handleren svarer.
+         * Videresender hvert kall urørt, så en hel kropp fortsatt sendes uten kopi.
+         */
+        private final class PendingResponse extends OutputStream {
+            private ResponseStream stream() throws IOException {
+                if (response == null) {
+                    throw new IOException("sendResponseHeaders er ikke kalt");
+                }
+                return response;
+            }
+            
+            @Override
+            public void write(int b) throws IOException {
+                stream().write(b);
+            }
+            
+            @Override
+            public void write(byte[] bytes, int offset, int count) throws IOException {
+                stream().write(bytes, offset, count);
+            }
+            
+            @Override
+            public void flush() throws IOException {
+                if (response != null) {
+                    response.flush();
+                }
+            }
+            
+            @Override
+            public void close() throws IOException {
+                stream().close();
+            }
+        }
+    }
+    
+    /**
+     * Svarkroppen. Med kjent lengde samles kroppen og sendes sammen med
+     * headeren ved close(); et array som er hele kroppen i ett write-kall
+     * legges rett i utkøen uten kopi. Med lengde 0 (strømming, f.eks. SSE)
+     * sendes hver flush() som en chunk. Lengde -1 betyr ingen kropp.
+     */
+    private static final class ResponseStream extends OutputStream {
+        private final Connection connection;
+        private final ByteBuffer header;
+        private final long length;
+        private final boolean chunked;
+        private final boolean keepAlive;
+        private final boolean headRequest;
+        private final List<ByteBuffer> body = new ArrayList<>(2);
+        private ByteArrayOutputStream copied;
+        private long written;
+        private boolean headerSent;
+        private boolean closed;
+        
+        ResponseStream(Connection connection, ByteBuffer header, long length, boolean chunked,
+                       boolean keepAlive, boolean headRequest) {
+            this.connection = connection;
+            this.header = header;
+            this.length = length;
+            this.chunked = chunked;
+            this.keepAlive = keepAlive;
+            this.headRequest = headRequest;
+        }
+        
+        void sendHeader() {
+            headerSent = true;
+            connection.send(header);
+        }
+        
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+        
+        @Override
+        public void write(byte[] bytes, int offset, int count) throws IOException {
+            if (closed || connection.closed) {
+                throw new IOException("Forbindelsen er lukket");
+            }
+            if (length < 0) {
+                throw new IOException("Svaret har ingen kropp");
+            }
+            if (count == 0) {
+                return;
+            }
+            if (length > 0 && written + count > length) {
+                throw new IOException("Mer data enn Content-Length");
+            }
+            written += count;
+            if (count == length) {
+                body.add(ByteBuffer.wrap(bytes, offset, count)); // hele kroppen: ingen kopi
+                return;
+            }
+            if (copied == null) {
+                copied = new ByteArrayOutputStream(Math.max(count, 256));
+            }
+            copied.write(bytes, offset, count);
+            if (length == 0 && copied.size() >= LOW_WATER_BYTES) {
+                flush(); // strømmende svar uten flush skal heller ikke samle seg i minnet
+            }
+        }
+        
+        private void takeCopied() {
+            if (copied != null && copied.size() > 0) {
+                body.add(ByteBuffer.wrap(copied.toByteArray()));
+                copied.reset();
+            }
+        }
+        
+        @Override
+        public void flush() throws IOException {
+            if (closed || length != 0) {
+                return; // kjent lengde sendes samlet ved close()
+            }
+            if (connection.closed) {
+                throw new IOException("Forbindelsen er lukket");
+            }
+            takeCopied();
+            if (body.isEmpty()) {
+                return;
+            }
+            int size = 0;
+            for (ByteBuffer buffer : body) {
+                size += buffer.remaining();
+            }
+            List<ByteBuffer> chunk = new ArrayList<>(body.size() + 2);
+            if (chunked) {
+                chunk.add(ByteBuffer.wrap((Integer.toHexString(size) + "\r\n").getBytes(StandardCharsets.ISO_8859_1)));
+            }
+            chunk.addAll(body);
+            if (chunked) {
+                chunk.add(ByteBuffer.wrap("\r\n".getBytes(StandardCharsets.ISO_8859_1)));
+            }
+            body.clear();
+            connection.send(chunk.toArray(new ByteBuffer[0]));
+            connection.awaitDrained();
+        }
+        
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            ByteBuffer end = keepAlive ? END_OF_RESPONSE : CLOSE;
+            if (headerSent) {
+                flush();
+                closed = true;
+                if (chunked) {
+                    connection.send(ByteBuffer.wrap("0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1)), end);
+                } else {
+                    connection.send(end);
+                }
+                connection.awaitDrained();
+                return;
+            }
+            closed = true;
+            if (written < length) {
+                connection.send(CLOSE);
+                throw new IOException("Mindre data enn Content-Length");
+            }
+            takeCopied();
+            ByteBuffer[] buffers = new ByteBuffer[headRequest ? 2 : body.size() + 2];
+            buffers[0] = header;
+            if (!headRequest) {
+                for (int i = 0; i < body.size(); i++) {
+                    buffers[i + 1] = body.get(i);
+                }
+            }
+            buffers[buffers.length - 1] = end;
+            connection.send(buffers);
+            connection.awaitDrained();
+        }
+    }
+    
+    private final class Context extends HttpContext {
+        final String path;
+        final List<Filter> filters = new CopyOnWriteArrayList<>();
+        final Map<String, Object> attributes = new ConcurrentHashMap<>();
+        volatile HttpHandler handler;
+        volatile Authenticator authenticator;
+        
+        Context(String path, HttpHandler handler) {
+            this.path = path;
+            this.handler = handler;
+        }
+        
+        @Override
+        public HttpHandler getHandler() {
+            return handler;
+        }
+        
+        @Override
+        public void setHandler(HttpHandler handler) {
+            this.handler = handler;
+        }
+        
+        @Override
+        public String getPath() {
+            return path;
+        }
+        
+        @Override
+        public HttpServer getServer() {
+            return NioHttpServer.this;
+        }
+        
+        @Override
+        public Map<String, Object> getAttributes() {
+            return attributes;
+        }
+        
+        @Override
+        public List<Filter> getFilters() {
+            return filters;
+        }
+        
+        @Override
+        public Authenticator setAuthenticator(Authenticator authenticator) {
+            Authenticator previous = this.authenticator;
+            this.authenticator = authenticator;
+            return previous;
+        }
+        
+        @Override
+        public Authenticator getAuthenticator() {
+            return authenticator;
+        }
+    }
+    
+    private static String reason(int status) {
+        switch (status) {
+            case 100: return "Continue";
+            case 200: return "OK";
+            case 201: return "Created";
+            case 202: return "Accepted";
+            case 204: return "No Content";
+            case 304: return "Not Modified";
+            case 400: return "Bad Request";
+            case 403: return "Forbidden";
+            case 404: return "Not Found";
+            case 405: return "Method Not Allowed";
+            case 409: return "Conflict";
+            case 411: return "Length Required";
+            case 413: return "Payload Too Large";
+            case 415: return "Unsupported Media Type";
+            case 429: return "Too Many Requests";
+            case 431: return "Request Header Fields Too Large";
+            case 500: return "Internal Server Error";
+            case 501: return "Not Implemented";
+            case 503: return "Service Unavailable";
+            default: return "Status";
+        }
+    }
+}
@@ -0,0 +1,24 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Beskriver hvordan én posttype lagres, både som CSV-linje og som binær post.
+ * Table og TableStore bruker dette, så hver server bare definerer sin egen type
+ * og får innlasting, lagring og indekser fra den felles lagringsmotoren.
+ */
+public interface Schema<V> {
+    
+    /** Magic-tallet i headeren på binærfiler med denne typen poster. */
+    int magic();
+    
+    /** Bygger en post fra en CSV-linje som allerede er splittet på komma. */
+    V fromCsv(String[] fields);
+    
+    void toCsv(V value, StringBuilder csv);
+    
+    void writeBinary(DataOutputStream out, V value) throws IOException;
+    
+    /** Leser én post; bufferet står rett etter forrige post. */
+    V readBinary(ByteBuffer in);
+}
@@ -0,0 +1,71 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * En student, felles for alle serverne som leser studenter.csv.
+ * 
+ * Objektene endres aldri etter at de er laget. En oppdatering erstatter hele
+ * posten i tabellen, så lesere og sjekkpunkter alltid ser en hel post.
+ */
+public final class Student {
+    
+    // Binærformat: id, så navn og program som lengdeprefikset UTF-8
+    public static final Schema<Student> SCHEMA = new Schema<Student>() {
+        @Override
+        public int magic() {
+            return 0x53545531; // "STU1"
+        }
+        
+        @Override
+        public Student fromCsv(String[] fields) {
+            if (fields.length < 3) {
+                throw new IllegalArgumentException("Expected id,name,program");
+            }
+            return new Student(Integer.parseInt(fields[0].trim()), fields[1].trim(), fields[2].trim());
+        }
+        
+        @Override
+        public void toCsv(Student student, StringBuilder csv) {
+            csv.append(student.id).append(",")
+               .append(student.name).append(",")
+               .append(student.program).append("\n");
+        }
+        
+        @Override
+        public void writeBinary(DataOutputStream out, Student student) throws IOException {
+            out.writeInt(student.id);
+            TableStore.writeString(out, student.name);
+            TableStore.writeString(out, student.program);
+        }
+        
+        @Override
+        public Student readBinary(ByteBuffer in) {
+            int id = in.getInt();
+            String name = TableStore.readString(in);
+            String program = TableStore.readString(in);
+            return new Student(id, name, program);
+        }
+    };
+    
+    public final int id;
+    public final String name;
+    public final String program;
+    
+    public Student(int id, String name, String program) {
+        this.id = id;
+        this.name = name;
+        this.program = program;
+    }
+    
+    public String toJSON() {
+        return String.format("{\"id\":%d,\"name\":\"%s\",\"program\":\"%s\"}",
+            id, Http.escapeJSON(name), Http.escapeJSON(program));
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("Student{id=%d, name='%s', program='%s'}",
+            id, name, program);
+    }
+}
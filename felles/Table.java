@@ -0,0 +1,140 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * En trådsikker tabell i minnet med primærnøkkel og valgfrie sekundærindekser.
+ * 
+ * Lesing (get, lookup, values) går uten lås mot ConcurrentHashMap. Skriving
+ * serialiseres på tabellen, slik at primærnøkkel og alle indekser alltid
+ * oppdateres sammen. Postene skal ikke endres etter innsetting; en oppdatering
+ * er en ny post med samme nøkkel. snapshot() gir en kopi for lagring uten
+ * å stoppe skriverne.
+ */
+public class Table<K, V> {
+    
+    /** Sekundærindeks: indeksnøkkel -> primærnøkler. */
+    private final class SecondaryIndex {
+        final Function<V, String> key;
+        final Map<String, Set<K>> entries = new ConcurrentHashMap<>();
+        
+        SecondaryIndex(Function<V, String> key) {
+            this.key = key;
+        }
+        
+        void add(K primaryKey, V value) {
+            entries.computeIfAbsent(key.apply(value), k -> ConcurrentHashMap.newKeySet()).add(primaryKey);
+        }
+        
+        void remove(K primaryKey, V value) {
+            String indexKey = key.apply(value);
+            Set<K> keys = entries.get(indexKey);
+            if (keys != null) {
+                keys.remove(primaryKey);
+                if (keys.isEmpty()) {
+                    entries.remove(indexKey);
+                }
+            }
+        }
+    }
+    
+    private final Schema<V> schema;
+    private final Function<V, K> primaryKey;
+    private final Map<K, V> rows = new ConcurrentHashMap<>();
+    private final Map<String, SecondaryIndex> indexes = new ConcurrentHashMap<>();
+    
+    public Table(Schema<V> schema, Function<V, K> primaryKey) {
+        this.schema = schema;
+        this.primaryKey = primaryKey;
+    }
+    
+    public Schema<V> schema() {
+        return schema;
+    }
+    
+    /** Legger til en sekundærindeks og bygger den fra postene som allerede finnes. */
+    public synchronized void addIndex(String name, Function<V, String> key) {
+        SecondaryIndex index = new SecondaryIndex(key);
+        for (Map.Entry<K, V> row : rows.entrySet()) {
+            index.add(row.getKey(), row.getValue());
+        }
+        indexes.put(name, index);
+    }
+    
+    public V get(K key) {
+        return rows.get(key);
+    }
+    
+    public boolean containsKey(K key) {
+        return rows.containsKey(key);
+    }
+    
+    public int size() {
+        return rows.size();
+    }
+    
+    /** Levende visning av postene; ser samtidige endringer, men aldri en halv post. */
+    public Collection<V> values() {
+        return Collections.unmodifiableCollection(rows.values());
+    }
+    
+    public Set<K> keys() {
+        return Collections.unmodifiableSet(rows.keySet());
+    }
+    
+    /** Setter inn eller erstatter posten med samme primærnøkkel. Returnerer forrige post. */
+    public synchronized V put(V value) {
+        K key = primaryKey.apply(value);
+        V previous = rows.put(key, value);
+        for (SecondaryIndex index : indexes.values()) {
+            if (previous != null) {
+                index.remove(key, previous);
+            }
+            index.add(key, value);
+        }
+        return previous;
+    }
+    
+    public synchronized V remove(K key) {
+        V previous = rows.remove(key);
+        if (previous != null) {
+            for (SecondaryIndex index : indexes.values()) {
+                index.remove(key, previous);
+            }
+        }
+        return previous;
+    }
+    
+    /** Primærnøklene med gitt verdi i indeksen, O(1). Tom mengde hvis ingen treff. */
+    public Set<K> lookup(String indexName, String indexKey) {
+        Set<K> keys = index(indexName).entries.get(indexKey);
+        return keys == null ? Collections.emptySet() : Collections.unmodifiableSet(keys);
+    }
+    
+    /** Antall poster per verdi i indeksen, sortert på verdien. */
+    public SortedMap<String, Integer> countBy(String indexName) {
+        SortedMap<String, Integer> counts = new TreeMap<>();
+        for (Map.Entry<String, Set<K>> entry : index(indexName).entries.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().size());
+        }
+        return counts;
+    }
+    
+    /**
+     * Kopi av alle poster, tatt uten låsen, så skrivere ikke venter på en O(N)
+     * kopiering. Kopien er svakt konsistent: poster som endres underveis, kan
+     * komme med før eller etter endringen, men aldri halvveis. Brukere må derfor
+     * kunne spille av endringene fra kopieringen startet (loggen i StudentCRUDAPI).
+     */
+    public List<V> snapshot() {
+        return new ArrayList<>(rows.values());
+    }
+    
+    private SecondaryIndex index(String name) {
+        SecondaryIndex index = indexes.get(name);
+        if (index == null) {
+            throw new IllegalArgumentException("Ukjent indeks: " + name);
+        }
+        return index;
+    }
+}
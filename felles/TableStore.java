@@ -0,0 +1,173 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Felles lagringslag: leser og skriver tabeller som CSV, eller i et kompakt
+ * binært format når filnavnet slutter på .bin.
+ * 
+ * Binærformatet har en header med magic, versjon, antall poster, lengde og
+ * CRC32, og leses med én FileChannel-lesing rett inn i et ByteBuffer som
+ * postene dekodes fra. Filen mappes ikke: postene havner uansett på heapen,
+ * og en levende mapping hindrer Windows i å bytte inn filen ved neste lagring.
+ * Alle filer skrives til en midlertidig fil og byttes inn atomisk, så en
+ * krasj aldri etterlater en halvskrevet fil.
+ * Hver innlasting og lagring blir en JFR-hendelse (JfrEvents.FileIo).
+ */
+public final class TableStore {
+    
+    public static final int BINARY_VERSION = 1;
+    public static final int BINARY_HEADER_SIZE = 24;
+    
+    private TableStore() {
+    }
+    
+    public static boolean isBinaryFile(String filePath) {
+        return filePath.endsWith(".bin");
+    }
+    
+    /** Leser alle postene i filen inn i tabellen. Returnerer antall poster lest. */
+    public static <K, V> int load(Table<K, V> table, String filePath) throws IOException {
+        JfrEvents.FileIo event = JfrEvents.FileIo.start("load", filePath);
+        Schema<V> schema = table.schema();
+        int loaded = 0;
+        if (isBinaryFile(filePath)) {
+            ByteBuffer buffer = readFile(filePath);
+            int count = readBinaryHeader(buffer, schema.magic(), filePath);
+            for (int i = 0; i < count; i++) {
+                table.put(schema.readBinary(buffer));
+                loaded++;
+            }
+        } else {
+            for (String line : Files.readAllLines(Paths.get(filePath), StandardCharsets.UTF_8)) {
+                if (line.trim().isEmpty()) continue;
+                try {
+                    table.put(schema.fromCsv(line.split(",")));
+                    loaded++;
+                } catch (IllegalArgumentException e) {
+                    System.err.println("Feil ved parsing av linje: " + line);
+                }
+            }
+        }
+        event.finish(loaded);
+        return loaded;
+    }
+    
+    /** Skriver et øyeblikksbilde av tabellen (se Table.snapshot). Returnerer antall poster skrevet. */
+    public static <K, V> int save(Table<K, V> table, String filePath) throws IOException {
+        List<V> snapshot = table.snapshot();
+        save(snapshot, table.schema(), filePath);
+        return snapshot.size();
+    }
+    
+    public static <V> void save(Collection<V> rows, Schema<V> schema, String filePath) throws IOException {
+        JfrEvents.FileIo event = JfrEvents.FileIo.start("save", filePath);
+        byte[] data;
+        if (isBinaryFile(filePath)) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(body);
+            for (V row : rows) {
+                schema.writeBinary(out, row);
+            }
+            data = encodeBinary(schema.magic(), rows.size(), body);
+        } else {
+            StringBuilder csv = new StringBuilder();
+            for (V row : rows) {
+                schema.toCsv(row, csv);
+            }
+            data = csv.toString().getBytes(StandardCharsets.UTF_8);
+        }
+        writeAtomically(filePath, data);
+        event.finish(rows.size(), data.length);
+    }
+    
+    /** Skriv til en midlertidig fil, fsync, og bytt atomisk. */
+    public static void writeAtomically(String filePath, byte[] data) throws IOException {
+        Path target = Paths.get(filePath);
+        Path tmp = Paths.get(filePath + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp.toFile())) {
+            out.write(data);
+            out.getFD().sync();
+        }
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    /** Legger header (med CRC32 av kroppen) foran postene. */
+    public static byte[] encodeBinary(int magic, int count, ByteArrayOutputStream body) {
+        byte[] bodyBytes = body.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bodyBytes);
+        ByteBuffer file = ByteBuffer.allocate(BINARY_HEADER_SIZE + bodyBytes.length);
+        file.putInt(magic)
+            .putInt(BINARY_VERSION)
+            .putInt(count)
+            .putLong(bodyBytes.length)
+            .putInt((int) crc.getValue())
+            .put(bodyBytes);
+        return file.array();
+    }
+    
+    /** Leser hele filen inn i et heap-buffer; kanalen er lukket når metoden returnerer. */
+    public static ByteBuffer readFile(String filePath) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Filen er for stor: " + filePath);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    throw new EOFException("Filen ble kortere under lesing: " + filePath);
+                }
+            }
+            return buffer.flip();
+        }
+    }
+    
+    /** Sjekker header og CRC32, og returnerer antall poster. Bufferet står etter headeren. */
+    public static int readBinaryHeader(ByteBuffer buffer, int magic, String filePath) throws IOException {
+        if (buffer.remaining() < BINARY_HEADER_SIZE || buffer.getInt() != magic) {
+            throw new IOException("Ikke en gyldig binærfil: " + filePath);
+        }
+        if (buffer.getInt() != BINARY_VERSION) {
+            throw new IOException("Ukjent versjon av binærfil: " + filePath);
+        }
+        int count = buffer.getInt();
+        long bodyLength = buffer.getLong();
+        int checksum = buffer.getInt();
+        
+        if (bodyLength != buffer.remaining()) {
+            throw new IOException("Binærfilen har feil lengde: " + filePath);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.duplicate());
+        if ((int) crc.getValue() != checksum) {
+            throw new IOException("Feil sjekksum i binærfil: " + filePath);
+        }
+        return count;
+    }
+    
+    public static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xFFFF) {
+            throw new IOException("Feltet er for langt for binærformatet");
+        }
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+    
+    public static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[Short.toUnsignedInt(buffer.getShort())];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
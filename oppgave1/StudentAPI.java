@@ -1,9 +1,10 @@
 import com.sun.net.httpserver.*;
 import java.io.*;
-import java.net.InetSocketAddress;
-import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.util.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Oppgave 1: Enkel READ-API
@@ -11,59 +12,206 @@ import java.util.*;
  * En minimalistisk webserver som tilbyr en HTTP GET-API for å hente studentdata
  * fra en CSV-fil og returnere det som JSON.
  * 
+ * Student, tabellen og innlastingen ligger i ../felles, som deles av alle serverne.
+ * 
  * Bruk:
+ *   javac -sourcepath ../felles -d . StudentAPI.java
  *   java StudentAPI <port> <csv-fil>
+ *   java StudentAPI <port> --follow <primær-url>   (lesereplika av StudentCRUDAPI)
  * 
  * Eksempel:
  *   java StudentAPI 8000 studenter.csv
+ *   java StudentAPI 8010 --follow http://localhost:8002
  * 
  * Test:
  *   curl http://localhost:8000/api/students/101
  *   curl http://localhost:8000/api/students
+ * 
+ * Replika:
+ *   Med --follow leses ingen fil. Serveren henter tabellen fra en kjørende
+ *   StudentCRUDAPI og følger loggen dens, så endringer der vises her etter
+ *   kort tid. /health viser hvor langt bak replikaen er (lagMillis: tid siden
+ *   den sist visste at den hadde alt primæren hadde). Med
+ *   -Dreplica.maxLag=<millisekunder> svarer replikaen 503 i stedet for å gi
+ *   eldre data enn det, så en lastbalanserer kan sende lesingen et annet sted.
  */
 public class StudentAPI {
     
-    private static Map<String, Student> students = new HashMap<>();
+    // En replika bytter ut hele tabellen når den henter et nytt øyeblikksbilde
+    private static volatile Table<Integer, Student> students = new Table<>(Student.SCHEMA, student -> student.id);
     private static String csvFilePath;
+    private static Replica replica;
     
-    // Indre klasse for Student
-    static class Student {
-        int id;
-        String name;
-        String program;
+    /**
+     * Følger loggen til en StudentCRUDAPI (primæren) og holder tabellen lik dens.
+     * 
+     * Henter først et øyeblikksbilde fra /replication/snapshot, og leser så
+     * loggposter fra /replication/log fra posisjonen øyeblikksbildet oppga. Faller
+     * forbindelsen, kobles det til igjen fra samme posisjon; svarer primæren 410
+     * (omstartet, eller replikaen har falt bak bufferet), hentes et nytt
+     * øyeblikksbilde. Går på én egen tråd, så lesere aldri venter på den.
+     */
+    static class Replica implements Runnable {
+        private static final long HEARTBEAT_MILLIS = 1000;
+        private static final long RETRY_MILLIS = 1000;
+        private static final long MAX_LAG_MILLIS = Long.getLong("replica.maxLag", 0);
         
-        Student(int id, String name, String program) {
-            this.id = id;
-            this.name = name;
-            this.program = program;
-        }
+        private final String primaryUrl;
+        private String stream;
+        private volatile long appliedSeq;
+        private volatile boolean connected;
+        private volatile boolean synced;
+        private volatile long lastContactNanos = System.nanoTime();
         
-        String toJSON() {
-            return String.format("{\"id\":%d,\"name\":\"%s\",\"program\":\"%s\"}", 
-                id, name, program);
+        Replica(String primaryUrl) {
+            this.primaryUrl = primaryUrl.endsWith("/")
+                ? primaryUrl.substring(0, primaryUrl.length() - 1) : primaryUrl;
         }
         
         @Override
-        public String toString() {
-            return String.format("Student{id=%d, name='%s', program='%s'}", 
-                id, name, program);
+        public void run() {
+            while (true) {
+                try {
+                    if (stream == null) {
+                        loadSnapshot();
+                    }
+                    if (!followLog()) {
+                        stream = null;
+                    }
+                } catch (IOException | RuntimeException e) {
+                    connected = false;
+                    System.err.println("Replikering fra " + primaryUrl + " feilet: " + e.getMessage());
+                    try {
+                        Thread.sleep(RETRY_MILLIS);
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                }
+            }
+        }
+        
+        private void loadSnapshot() throws IOException {
+            HttpURLConnection conn = open("/replication/snapshot", 10_000);
+            try {
+                if (conn.getResponseCode() != 200) {
+                    throw new IOException("Primæren svarte " + conn.getResponseCode() + " på øyeblikksbildet");
+                }
+                String snapshotStream = conn.getHeaderField("X-Replication-Stream");
+                long seq = Long.parseLong(conn.getHeaderField("X-Replication-Seq"));
+                
+                Table<Integer, Student> table = new Table<>(Student.SCHEMA, student -> student.id);
+                try (BufferedReader in = new BufferedReader(
+                        new InputStreamReader(conn.getInputStream(), StandardCharsets.UTF_8))) {
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        if (!line.isEmpty()) {
+                            table.put(Student.SCHEMA.fromCsv(line.split(",")));
+                        }
+                    }
+                }
+                
+                students = table;
+                stream = snapshotStream;
+                appliedSeq = seq;
+                lastContactNanos = System.nanoTime();
+                synced = true;
+                System.out.println("Hentet " + table.size() + " studenter fra " + primaryUrl + " (posisjon " + seq + ")");
+            } finally {
+                conn.disconnect();
+            }
+        }
+        
+        /** Leser loggposter til forbindelsen lukkes. Returnerer false hvis posisjonen er ugyldig (410). */
+        private boolean followLog() throws IOException {
+            HttpURLConnection conn = open("/replication/log?stream=" + stream + "&after=" + appliedSeq
+                + "&heartbeat=" + HEARTBEAT_MILLIS, (int) (3 * HEARTBEAT_MILLIS));
+            try {
+                int status = conn.getResponseCode();
+                if (status == 410) {
+                    return false;
+                }
+                if (status != 200) {
+                    throw new IOException("Primæren svarte " + status + " på loggen");
+                }
+                
+                connected = true;
+                try (BufferedReader in = new BufferedReader(
+                        new InputStreamReader(conn.getInputStream(), StandardCharsets.UTF_8))) {
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        apply(line.split(","));
+                    }
+                }
+                return true;
+            } finally {
+                connected = false;
+                conn.disconnect();
+            }
+        }
+        
+        /** Spiller av én loggpost: "<seq>,P,<id>,<navn>,<program>", "<seq>,D,<id>" eller "<seq>,H". */
+        private void apply(String[] fields) {
+            long seq = Long.parseLong(fields[0]);
+            switch (fields[1]) {
+                case "P":
+                    students.put(Student.SCHEMA.fromCsv(Arrays.copyOfRange(fields, 2, fields.length)));
+                    break;
+                case "D":
+                    students.remove(Integer.parseInt(fields[2]));
+                    break;
+                default:
+                    // Heartbeat: ingen endring, men replikaen er à jour
+            }
+            appliedSeq = seq;
+            lastContactNanos = System.nanoTime();
+        }
+        
+        private HttpURLConnection open(String path, int readTimeoutMillis) throws IOException {
+            HttpURLConnection conn = (HttpURLConnection) new URL(primaryUrl + path).openConnection();
+            conn.setConnectTimeout(2000);
+            conn.setReadTimeout(readTimeoutMillis);
+            return conn;
+        }
+        
+        long lagMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastContactNanos);
+        }
+        
+        /** For gammel til å svare: ikke hentet ennå, eller mer enn replica.maxLag bak. */
+        boolean isStale() {
+            return !synced || (MAX_LAG_MILLIS > 0 && lagMillis() > MAX_LAG_MILLIS);
+        }
+        
+        String toJSON() {
+            return "{\"primary\":\"" + Http.escapeJSON(primaryUrl) + "\",\"connected\":" + connected
+                + ",\"seq\":" + appliedSeq + ",\"lagMillis\":" + lagMillis() + "}";
         }
     }
     
     public static void main(String[] args) throws Exception {
-        if (args.length < 2) {
+        if (args.length < 2 || ("--follow".equals(args[1]) && args.length < 3)) {
             System.err.println("Bruk: java StudentAPI <port> <csv-fil>");
+            System.err.println("      java StudentAPI <port> --follow <primær-url>");
             System.exit(1);
         }
         
         int port = Integer.parseInt(args[0]);
-        csvFilePath = args[1];
         
-        // Last inn CSV-filen
-        loadStudentsFromCSV(csvFilePath);
+        if ("--follow".equals(args[1])) {
+            replica = new Replica(args[2]);
+            Thread replication = new Thread(replica, "replication");
+            replication.setDaemon(true);
+            replication.start();
+        } else {
+            csvFilePath = args[1];
+            
+            // Last inn CSV-filen
+            TableStore.load(students, csvFilePath);
+            System.out.println("Lastet inn " + students.size() + " studenter fra " + csvFilePath);
+        }
         
         // Opprett HTTP-server
-        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        HttpServer server = Http.createServer(port);
         
         // Definer kontekster (endpoints)
         server.createContext("/api/students", StudentAPI::handleStudentsRequest);
@@ -73,34 +221,17 @@ public class StudentAPI {
         server.setExecutor(null); // Bruk default executor
         server.start();
         
-        System.out.println("StudentAPI server startet på port " + port);
+        System.out.println("StudentAPI server startet på port " + port
+            + (replica != null ? " (replika av " + args[2] + ")" : ""));
         System.out.println("Tilgjengelige endepunkter:");
         System.out.println("  GET /api/students          - Hent alle studenter");
         System.out.println("  GET /api/students/{id}     - Hent student med spesifikk ID");
         System.out.println("  GET /health                - Sjekk server-status");
     }
     
-    private static void loadStudentsFromCSV(String filePath) throws IOException {
-        List<String> lines = Files.readAllLines(Paths.get(filePath));
-        for (String line : lines) {
-            if (line.trim().isEmpty()) continue;
-            
-            String[] parts = line.split(",");
-            if (parts.length >= 3) {
-                try {
-                    int id = Integer.parseInt(parts[0].trim());
-                    String name = parts[1].trim();
-                    String program = parts[2].trim();
-                    students.put(String.valueOf(id), new Student(id, name, program));
-                } catch (NumberFormatException e) {
-                    System.err.println("Feil ved parsing av linje: " + line);
-                }
-            }
-        }
-        System.out.println("Lastet inn " + students.size() + " studenter fra " + filePath);
-    }
-    
     private static void handleStudentsRequest(HttpExchange exchange) throws IOException {
+        if (rejectIfStale(exchange)) return;
+        
         // Hent alle studenter
         StringBuilder json = new StringBuilder("[");
         boolean first = true;
@@ -111,40 +242,51 @@ public class StudentAPI {
         }
         json.append("]");
         
-        sendResponse(exchange, 200, json.toString());
+        Http.sendResponse(exchange, 200, json.toString());
     }
     
     private static void handleStudentRequest(HttpExchange exchange) throws IOException {
+        if (rejectIfStale(exchange)) return;
+        
         String path = exchange.getRequestURI().getPath();
         String[] parts = path.split("/");
         
         if (parts.length < 4) {
-            sendResponse(exchange, 400, "{\"error\":\"Invalid request\"}");
+            Http.sendResponse(exchange, 400, "{\"error\":\"Invalid request\"}");
             return;
         }
         
-        String studentId = parts[3];
+        Student student = null;
+        try {
+            student = students.get(Integer.parseInt(parts[3]));
+        } catch (NumberFormatException e) {
+            // Ugyldig ID - finnes ikke
+        }
         
-        if (students.containsKey(studentId)) {
-            Student student = students.get(studentId);
-            sendResponse(exchange, 200, student.toJSON());
+        if (student != null) {
+            Http.sendResponse(exchange, 200, student.toJSON());
         } else {
-            sendResponse(exchange, 404, "{\"error\":\"Student not found\"}");
+            Http.sendResponse(exchange, 404, "{\"error\":\"Student not found\"}");
         }
     }
     
     private static void handleHealthCheck(HttpExchange exchange) throws IOException {
-        sendResponse(exchange, 200, "{\"status\":\"OK\"}");
+        if (replica == null) {
+            Http.sendResponse(exchange, 200, "{\"status\":\"OK\"}");
+        } else if (replica.isStale()) {
+            Http.sendResponse(exchange, 503, "{\"status\":\"STALE\",\"replication\":" + replica.toJSON() + "}");
+        } else {
+            Http.sendResponse(exchange, 200, "{\"status\":\"OK\",\"replication\":" + replica.toJSON() + "}");
+        }
     }
     
-    private static void sendResponse(HttpExchange exchange, int statusCode, String response) 
-            throws IOException {
-        exchange.getResponseHeaders().set("Content-Type", "application/json");
-        exchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
-        exchange.sendResponseHeaders(statusCode, response.getBytes().length);
-        
-        OutputStream os = exchange.getResponseBody();
-        os.write(response.getBytes());
-        os.close();
+    /** En replika som ikke er à jour, svarer 503 i stedet for å gi gamle data. */
+    private static boolean rejectIfStale(HttpExchange exchange) throws IOException {
+        if (replica == null || !replica.isStale()) {
+            return false;
+        }
+        exchange.getResponseHeaders().set("Retry-After", "1");
+        Http.sendResponse(exchange, 503, "{\"error\":\"Replica is behind the primary\"}");
+        return true;
     }
 }
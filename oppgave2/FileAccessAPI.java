@@ -1,11 +1,10 @@
 import com.sun.net.httpserver.*;
 import java.io.*;
-import java.net.InetSocketAddress;
-import java.net.URLDecoder;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.Executors;
 import java.util.stream.Collectors;
 
 /**
@@ -16,6 +15,7 @@ import java.util.stream.Collectors;
  * 2. Simulert SQL Injection: Viser hvordan manglende input-validering kan misbrukes i søk.
  * 
  * Bruk:
+ *   javac -sourcepath ../felles -d . FileAccessAPI.java
  *   java FileAccessAPI <port> <data-mappe>
  * 
  * Eksempel:
@@ -35,14 +35,18 @@ public class FileAccessAPI {
         dataDirectory = args[1];
         
         // Opprett HTTP-server
-        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        HttpServer server = Http.createServer(port);
         
-        // Endepunkter
-        server.createContext("/api/files", FileAccessAPI::handleFileRequest);       // Sårbar for Path Traversal
-        server.createContext("/api/search", FileAccessAPI::handleSearchRequest);    // Sårbar for "SQL Injection"
+        // Endepunkter. Begge leser fra disk og deler én grense; /health har ingen
+        AdmissionControl diskReads = AdmissionControl.forScans("/api/files, /api/search");
+        server.createContext("/api/files", FileAccessAPI::handleFileRequest)       // Sårbar for Path Traversal
+            .getFilters().add(diskReads);
+        server.createContext("/api/search", FileAccessAPI::handleSearchRequest)    // Sårbar for "SQL Injection"
+            .getFilters().add(diskReads);
         server.createContext("/health", FileAccessAPI::handleHealthCheck);
         
-        server.setExecutor(null);
+        // Egne tråder, så /health ikke står i kø bak fillesing
+        server.setExecutor(Executors.newCachedThreadPool());
         server.start();
         
         System.out.println("FileAccessAPI server startet på port " + port);
@@ -58,10 +62,10 @@ public class FileAccessAPI {
      */
     private static void handleFileRequest(HttpExchange exchange) throws IOException {
         String query = exchange.getRequestURI().getQuery();
-        String filename = getQueryParam(query, "filename");
+        String filename = Http.queryParam(query, "filename");
         
         if (filename == null) {
-            sendResponse(exchange, 400, "{\"error\":\"Missing filename parameter\"}");
+            Http.sendResponse(exchange, 400, "{\"error\":\"Missing filename parameter\"}");
             return;
         }
         
@@ -69,19 +73,19 @@ public class FileAccessAPI {
         // Vi slår bare sammen data-mappen med filnavnet.
         Path filePath = Paths.get(dataDirectory, filename);
         
-        System.out.println("Forsøker å lese fil: " + filePath.toString());
+        AsyncLog.info("Forsøker å lese fil: " + filePath.toString());
         
         if (Files.exists(filePath) && !Files.isDirectory(filePath)) {
             try {
                 String content = Files.readString(filePath);
                 // Returner innholdet som JSON (enkelt pakket inn)
-                String jsonContent = escapeJSON(content);
-                sendResponse(exchange, 200, "{\"filename\":\"" + filename + "\", \"content\":\"" + jsonContent + "\"}");
+                String jsonContent = Http.escapeJSON(content);
+                Http.sendResponse(exchange, 200, "{\"filename\":\"" + filename + "\", \"content\":\"" + jsonContent + "\"}");
             } catch (IOException e) {
-                sendResponse(exchange, 500, "{\"error\":\"Could not read file\"}");
+                Http.sendResponse(exchange, 500, "{\"error\":\"Could not read file\"}");
             }
         } else {
-            sendResponse(exchange, 404, "{\"error\":\"File not found\"}");
+            Http.sendResponse(exchange, 404, "{\"error\":\"File not found\"}");
         }
     }
     
@@ -90,23 +94,25 @@ public class FileAccessAPI {
      */
     private static void handleSearchRequest(HttpExchange exchange) throws IOException {
         String query = exchange.getRequestURI().getQuery();
-        String searchQuery = getQueryParam(query, "query");
-        System.out.println("searchQuery=" + searchQuery);
+        String searchQuery = Http.queryParam(query, "query");
+        AsyncLog.info("searchQuery=" + searchQuery);
         if (searchQuery == null) {
-            sendResponse(exchange, 400, "{\"error\":\"Missing query parameter\"}");
+            Http.sendResponse(exchange, 400, "{\"error\":\"Missing query parameter\"}");
             return;
         }
         
         // Last inn brukere (forenklet/hardkodet for demo)
         Path userPath = Paths.get(dataDirectory, "brukere.csv");
+        JfrEvents.FileIo readEvent = JfrEvents.FileIo.start("read", userPath.toString());
         List<String> lines = Files.readAllLines(userPath);
+        readEvent.finish(lines.size());
         List<String> results = new ArrayList<>();
         
         // SÅRBARHET: Simulert SQL Injection logikk
         // Hvis input inneholder "' OR '1'='1", returnerer vi alt.
         boolean injectionSuccess = searchQuery.contains("' OR '1'='1");
         
-        System.out.println("injectionSuccess=" + injectionSuccess);
+        AsyncLog.info("injectionSuccess=" + injectionSuccess);
         
         for (String line : lines) {
             if (line.trim().isEmpty()) continue;
@@ -121,49 +127,15 @@ public class FileAccessAPI {
             // Injection: Hvis injectionSuccess er true, matcher vi ALT.
             if (injectionSuccess || email.contains(searchQuery)) {
                 results.add(String.format("{\"id\":%s,\"email\":\"%s\",\"name\":\"%s\"}", 
-                    parts[0], escapeJSON(parts[1]), escapeJSON(parts[2])));
+                    parts[0], Http.escapeJSON(parts[1]), Http.escapeJSON(parts[2])));
             }
         }
         
         String jsonResponse = "[" + String.join(",", results) + "]";
-        sendResponse(exchange, 200, jsonResponse);
+        Http.sendResponse(exchange, 200, jsonResponse);
     }
     
     private static void handleHealthCheck(HttpExchange exchange) throws IOException {
-        sendResponse(exchange, 200, "{\"status\":\"OK\"}");
-    }
-    
-    // Hjelpemetoder
-    
-    private static String getQueryParam(String query, String paramName) {
-        if (query == null) return null;
-        for (String param : query.split("&")) {
-            String[] kv = param.split("=", 2);
-            if (kv.length > 1 && kv[0].equals(paramName)) {
-                try {
-                    return URLDecoder.decode(kv[1], "UTF-8");
-                } catch (UnsupportedEncodingException e) {
-                    return null;
-                }
-            }
-        }
-        return null;
-    }
-    
-    private static String escapeJSON(String str) {
-        if (str == null) return "";
-        return str.replace("\\", "\\\\")
-                  .replace("\"", "\\\"")
-                  .replace("\n", "\\n")
-                  .replace("\r", "\\r")
-                  .replace("\t", "\\t");
-    }
-    
-    private static void sendResponse(HttpExchange exchange, int statusCode, String response) throws IOException {
-        exchange.getResponseHeaders().set("Content-Type", "application/json");
-        exchange.sendResponseHeaders(statusCode, response.getBytes().length);
-        OutputStream os = exchange.getResponseBody();
-        os.write(response.getBytes());
-        os.close();
+        Http.sendResponse(exchange, 200, "{\"status\":\"OK\"}");
     }
 }
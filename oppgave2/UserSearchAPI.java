@@ -1,10 +1,8 @@
 import com.sun.net.httpserver.*;
 import java.io.*;
-import java.net.InetSocketAddress;
 import java.net.URLDecoder;
-import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.util.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executors;
 
 /**
  * Oppgave 2: API med Søk og SQL Injection-illustrasjon
@@ -12,7 +10,10 @@ import java.util.*;
  * En webserver som tilbyr søkefunksjonalitet med eksempel på SQL injection-sårbarhet.
  * Oppgaven illustrerer viktigheten av input-validering.
  * 
+ * Brukertabellen og innlastingen bruker den felles lagringsmotoren i ../felles.
+ * 
  * Bruk:
+ *   javac -sourcepath ../felles -d . UserSearchAPI.java
  *   java UserSearchAPI <port> <csv-fil>
  * 
  * Eksempel:
@@ -27,14 +28,48 @@ import java.util.*;
  */
 public class UserSearchAPI {
     
-    private static Map<String, User> users = new HashMap<>();
+    // Brukere med e-post som primærnøkkel (eksakt oppslag i search-safe)
+    private static Table<String, User> users = new Table<>(User.SCHEMA, user -> user.email);
     private static String csvFilePath;
     
     // Indre klasse for User
     static class User {
-        int id;
-        String email;
-        String name;
+        // Lagringsformat for brukere.csv: id,email,navn
+        static final Schema<User> SCHEMA = new Schema<User>() {
+            @Override
+            public int magic() {
+                return 0x55535231; // "USR1"
+            }
+            
+            @Override
+            public User fromCsv(String[] fields) {
+                if (fields.length < 3) {
+                    throw new IllegalArgumentException("Expected id,email,name");
+                }
+                return new User(Integer.parseInt(fields[0].trim()), fields[1].trim(), fields[2].trim());
+            }
+            
+            @Override
+            public void toCsv(User user, StringBuilder csv) {
+                csv.append(user.id).append(",").append(user.email).append(",").append(user.name).append("\n");
+            }
+            
+            @Override
+            public void writeBinary(DataOutputStream out, User user) throws IOException {
+                out.writeInt(user.id);
+                TableStore.writeString(out, user.email);
+                TableStore.writeString(out, user.name);
+            }
+            
+            @Override
+            public User readBinary(ByteBuffer in) {
+                return new User(in.getInt(), TableStore.readString(in), TableStore.readString(in));
+            }
+        };
+        
+        final int id;
+        final String email;
+        final String name;
         
         User(int id, String email, String name) {
             this.id = id;
@@ -44,7 +79,7 @@ public class UserSearchAPI {
         
         String toJSON() {
             return String.format("{\"id\":%d,\"email\":\"%s\",\"name\":\"%s\"}", 
-                id, escapeJSON(email), escapeJSON(name));
+                id, Http.escapeJSON(email), Http.escapeJSON(name));
         }
     }
     
@@ -58,17 +93,24 @@ public class UserSearchAPI {
         csvFilePath = args[1];
         
         // Last inn CSV-filen (fra disk til primært minne)
-        loadUsersFromCSV(csvFilePath);
+        TableStore.load(users, csvFilePath);
+        System.out.println("Lastet inn " + users.size() + " brukere fra " + csvFilePath);
         
         // Opprett HTTP-server
-        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        HttpServer server = Http.createServer(port);
         
         // Definer kontekster (endpoints)
-        server.createContext("/api/search", UserSearchAPI::handleSearchRequest);
-        server.createContext("/api/search-safe", UserSearchAPI::handleSearchSafeRequest);
-        server.createContext("/api/users", UserSearchAPI::handleUsersRequest);
-        
-        server.setExecutor(null);
+        // Skanningene av hele tabellen deler én grense; oppslaget har sin egen
+        AdmissionControl scans = AdmissionControl.forScans("/api/search, /api/users");
+        server.createContext("/api/search", UserSearchAPI::handleSearchRequest)
+            .getFilters().add(scans);
+        server.createContext("/api/search-safe", UserSearchAPI::handleSearchSafeRequest)
+            .getFilters().add(AdmissionControl.forLookups("/api/search-safe"));
+        server.createContext("/api/users", UserSearchAPI::handleUsersRequest)
+            .getFilters().add(scans);
+        
+        // Egne tråder, så oppslag ikke står i kø bak skanninger
+        server.setExecutor(Executors.newCachedThreadPool());
         server.start();
         
         System.out.println("UserSearchAPI server startet på port " + port);
@@ -78,32 +120,12 @@ public class UserSearchAPI {
         System.out.println("  GET /api/search-safe?email=...      - Søk etter bruker (SIKKER)");
     }
     
-    private static void loadUsersFromCSV(String filePath) throws IOException {
-        List<String> lines = Files.readAllLines(Paths.get(filePath));
-        for (String line : lines) {
-            if (line.trim().isEmpty()) continue;
-            
-            String[] parts = line.split(",");
-            if (parts.length >= 3) {
-                try {
-                    int id = Integer.parseInt(parts[0].trim());
-                    String email = parts[1].trim();
-                    String name = parts[2].trim();
-                    users.put(email, new User(id, email, name));
-                } catch (NumberFormatException e) {
-                    System.err.println("Feil ved parsing av linje: " + line);
-                }
-            }
-        }
-        System.out.println("Lastet inn " + users.size() + " brukere fra " + filePath);
-    }
-    
     private static void handleSearchRequest(HttpExchange exchange) throws IOException {
         // SÅRBAR versjon - illustrerer SQL injection-prinsippet
         String query = exchange.getRequestURI().getQuery();
         
         if (query == null || query.isEmpty()) {
-            sendResponse(exchange, 400, "{\"error\":\"Missing email parameter\"}");
+            Http.sendResponse(exchange, 400, "{\"error\":\"Missing email parameter\"}");
             return;
         }
         
@@ -117,12 +139,12 @@ public class UserSearchAPI {
                 }
             }
         } catch (Exception e) {
-            sendResponse(exchange, 400, "{\"error\":\"Invalid query parameter\"}");
+            Http.sendResponse(exchange, 400, "{\"error\":\"Invalid query parameter\"}");
             return;
         }
         
         if (email == null || email.isEmpty()) {
-            sendResponse(exchange, 400, "{\"error\":\"Missing email parameter\"}");
+            Http.sendResponse(exchange, 400, "{\"error\":\"Missing email parameter\"}");
             return;
         }
         
@@ -130,8 +152,8 @@ public class UserSearchAPI {
         // Hvis email = "bruker1@epost.no' OR '1'='1", ville en SQL-database returnert alle poster
         // Med CSV-filer er det mindre kritisk, men prinsippet er det samme
         
-        System.out.println("Søk etter: " + email);
-        System.out.flush();
+        // Loggen skrives av en bakgrunnstråd; søket venter ikke på stdout
+        AsyncLog.info("Søk etter: " + email);
         
         // Illustrer problemet: Søk som ikke er eksakt match
         StringBuilder results = new StringBuilder("[");
@@ -148,7 +170,7 @@ public class UserSearchAPI {
         }
         results.append("]");
         
-        sendResponse(exchange, 200, results.toString());
+        Http.sendResponse(exchange, 200, results.toString());
     }
     
     private static void handleSearchSafeRequest(HttpExchange exchange) throws IOException {
@@ -156,7 +178,7 @@ public class UserSearchAPI {
         String query = exchange.getRequestURI().getQuery();
         
         if (query == null || query.isEmpty()) {
-            sendResponse(exchange, 400, "{\"error\":\"Missing email parameter\"}");
+            Http.sendResponse(exchange, 400, "{\"error\":\"Missing email parameter\"}");
             return;
         }
         
@@ -170,27 +192,27 @@ public class UserSearchAPI {
                 }
             }
         } catch (Exception e) {
-            sendResponse(exchange, 400, "{\"error\":\"Invalid query parameter\"}");
+            Http.sendResponse(exchange, 400, "{\"error\":\"Invalid query parameter\"}");
             return;
         }
         
         if (email == null || email.isEmpty()) {
-            sendResponse(exchange, 400, "{\"error\":\"Missing email parameter\"}");
+            Http.sendResponse(exchange, 400, "{\"error\":\"Missing email parameter\"}");
             return;
         }
         
         // SIKKER: Validering av input
         if (!isValidEmail(email)) {
-            sendResponse(exchange, 400, "{\"error\":\"Invalid email format\"}");
+            Http.sendResponse(exchange, 400, "{\"error\":\"Invalid email format\"}");
             return;
         }
         
         // Eksakt søk
-        if (users.containsKey(email)) {
-            User user = users.get(email);
-            sendResponse(exchange, 200, "[" + user.toJSON() + "]");
+        User user = users.get(email);
+        if (user != null) {
+            Http.sendResponse(exchange, 200, "[" + user.toJSON() + "]");
         } else {
-            sendResponse(exchange, 200, "[]");
+            Http.sendResponse(exchange, 200, "[]");
         }
     }
     
@@ -204,7 +226,7 @@ public class UserSearchAPI {
         }
         json.append("]");
         
-        sendResponse(exchange, 200, json.toString());
+        Http.sendResponse(exchange, 200, json.toString());
     }
     
     private static boolean isValidEmail(String email) {
@@ -217,24 +239,4 @@ public class UserSearchAPI {
         // Sjekk for gyldig e-postformat (enkel versjon)
         return email.matches("[a-zA-Z0-9._%+-]+@[a-zA-Z0-9.-]+\\.[a-zA-Z]{2,}");
     }
-    
-    private static String escapeJSON(String str) {
-        if (str == null) return "";
-        return str.replace("\\", "\\\\")
-                  .replace("\"", "\\\"")
-                  .replace("\n", "\\n")
-                  .replace("\r", "\\r")
-                  .replace("\t", "\\t");
-    }
-    
-    private static void sendResponse(HttpExchange exchange, int statusCode, String response) 
-            throws IOException {
-        exchange.getResponseHeaders().set("Content-Type", "application/json");
-        exchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
-        exchange.sendResponseHeaders(statusCode, response.getBytes().length);
-        
-        OutputStream os = exchange.getResponseBody();
-        os.write(response.getBytes());
-        os.close();
-    }
 }
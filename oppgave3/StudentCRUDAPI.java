@@ -1,9 +1,17 @@
 import com.sun.net.httpserver.*;
 import java.io.*;
-import java.net.InetSocketAddress;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Oppgave 3: CRUD-API med UPDATE
@@ -12,7 +20,9 @@ import java.util.*;
  * Denne oppgaven fokuserer på UPDATE (PUT).
  * 
  * Bruk:
+ *   javac -sourcepath ../felles -d . StudentCRUDAPI.java
  *   java StudentCRUDAPI <port> <csv-fil>
+ *   java StudentCRUDAPI --convert <inn-fil> <ut-fil>   (CSV <-> binært format)
  * 
  * Eksempel:
  *   java StudentCRUDAPI 8002 studenter.csv
@@ -22,114 +32,442 @@ import java.util.*;
  *   curl -X PUT -H "Content-Type: application/json" \
  *        -d '{"name":"Mickey Mouse","program":"CS"}' \
  *        http://localhost:8002/api/students/101                    # PUT
+ *   curl -N http://localhost:8002/api/students/changes             # SSE-strøm av endringer
+ *   curl "http://localhost:8002/api/students?program=CS"           # Filtrer på program
+ * 
+ * Lagring:
+ *   CSV-filen er et sjekkpunkt (snapshot). Hver endring legges først til en
+ *   append-only logg (<csv-fil>.log.<n>), og en bakgrunnstråd skriver jevnlig et
+ *   nytt sjekkpunkt og sletter eldre loggsegmenter. Ved oppstart leses
+ *   sjekkpunktet og deretter den korte loggen som er igjen.
+ *   Intervallet settes med -Dcheckpoint.interval=<sekunder> (standard 30).
+ * 
+ *   En endring bekreftes først når loggposten er fsyncet. Skrivere som venter
+ *   samtidig, deler én fsync (group commit). Med -Dwal.fsync=false blir loggen
+ *   bare flushet til operativsystemet: det tåler at prosessen krasjer, men ikke
+ *   strømbrudd eller krasj i operativsystemet.
+ * 
+ *   Slutter filnavnet på .bin, brukes et kompakt binært format i stedet for CSV.
+ *   Det leses med én FileChannel-lesing, så oppstart slipper readAllLines og split.
+ * 
+ *   Tabellen, programindeksen og fillagringen er den felles lagringsmotoren i
+ *   ../felles (Table og TableStore); loggen og endringsstrømmen ligger her.
+ * 
+ * Replikering:
+ *   Serveren er primær for lesereplikaer (StudentAPI med --follow). En replika
+ *   henter først et øyeblikksbilde fra /replication/snapshot, og følger deretter
+ *   /replication/log, som sender de samme postene som skrives til loggen, med
+ *   sekvensnummer. Posisjonen gjelder bare for denne kjøringen av serveren
+ *   (X-Replication-Stream); etter en omstart, eller hvis replikaen har falt
+ *   lenger bak enn endringsbufferet, svarer loggen 410 og replikaen henter et
+ *   nytt øyeblikksbilde.
  */
 public class StudentCRUDAPI {
     
-    private static Map<Integer, Student> students = new HashMap<>();
-    private static String csvFilePath;
+    private static final int MAX_BODY_BYTES = 16 * 1024;
+    
+    private static final long CHECKPOINT_INTERVAL_SECONDS = Long.getLong("checkpoint.interval", 30);
+    
+    // Student-objektene endres aldri etter innsetting; en oppdatering erstatter hele posten.
+    // Tabellen holder også sekundærindeksen "program" oppdatert ved hver endring.
+    private static Table<Integer, Student> students = new Table<>(Student.SCHEMA, student -> student.id);
+    private static String dataFilePath;
+    
+    // Alle endringer serialiseres gjennom denne låsen (logg + tabell)
+    private static final Object writeLock = new Object();
+    // Ett sjekkpunkt om gangen (bakgrunnstråden og avslutningen): de skriver samme .tmp-fil
+    private static final Object checkpointLock = new Object();
+    private static boolean checkpointsStopped;
+    private static int currentSegment;
+    private static FileOutputStream currentLogFile;
+    private static OutputStream currentLog;
+    private static int currentLogRecords;
+    private static long appendedRecords;
     
-    static class Student {
-        int id;
-        String name;
-        String program;
+    // Group commit: skrivere venter på at posisjonen deres er fsyncet før de svarer,
+    // og tråden "log-sync" fsyncer alt som er lagt til siden forrige runde med én force
+    private static final boolean WAL_FSYNC = Boolean.parseBoolean(System.getProperty("wal.fsync", "true"));
+    private static final Object syncLock = new Object();
+    private static long syncRequested;
+    private static long syncedRecords;
+    private static IOException syncFailure;
+    
+    private static final ChangeFeed changeFeed = new ChangeFeed(Integer.getInteger("changes.buffer", 1024));
+    private static final int MAX_CHANGE_SUBSCRIBERS = 64;
+    private static final long HEARTBEAT_MILLIS = 15_000;
+    private static final AtomicInteger changeSubscribers = new AtomicInteger();
+    
+    // Identifiserer sekvensnumrene i endringsbufferet; de starter på nytt ved hver oppstart
+    private static final String replicationStream = UUID.randomUUID().toString();
+    
+    /**
+     * Strømmende JSON-parser for Student.
+     * 
+     * Leser tegn for tegn rett fra request-strømmen i én passering og binder
+     * feltene "name" og "program" direkte til en Student. Ukjente felt hoppes over.
+     * Escape-sekvenser (inkludert \\uXXXX) håndteres, så verdier kan inneholde
+     * komma, kolon og anførselstegn.
+     */
+    static class StudentJsonReader {
+        private static final int MAX_DEPTH = 32;
         
-        Student(int id, String name, String program) {
-            this.id = id;
-            this.name = name;
-            this.program = program;
-        }
+        private final Reader in;
+        private final StringBuilder buffer = new StringBuilder();
+        private int pushedBack = -2;
         
-        String toJSON() {
-            return String.format("{\"id\":%d,\"name\":\"%s\",\"program\":\"%s\"}", 
-                id, escapeJSON(name), escapeJSON(program));
+        StudentJsonReader(InputStream in) {
+            this.in = new InputStreamReader(in, StandardCharsets.UTF_8);
         }
         
-        static Student fromJSON(String json) throws Exception {
-            // Enkel JSON-parsing (ikke robust, men minimalistisk)
-            Map<String, String> map = parseJSON(json);
+        /** Returnerer en Student med id -1; felt som mangler blir null. */
+        Student readStudent() throws Exception {
+            String name = null;
+            String program = null;
             
-            if (!map.containsKey("name") || !map.containsKey("program")) {
-                throw new Exception("Missing required fields: name, program");
+            expect(nextNonWhitespace(), '{');
+            int c = nextNonWhitespace();
+            if (c != '}') {
+                while (true) {
+                    expect(c, '"');
+                    readString();
+                    expect(nextNonWhitespace(), ':');
+                    
+                    // Sammenlign nøkkelen direkte mot bufferet, uten å lage en String
+                    if ("name".contentEquals(buffer)) {
+                        name = readStringValue("name");
+                    } else if ("program".contentEquals(buffer)) {
+                        program = readStringValue("program");
+                    } else {
+                        skipValue(nextNonWhitespace(), 0);
+                    }
+                    
+                    c = nextNonWhitespace();
+                    if (c == '}') break;
+                    expect(c, ',');
+                    c = nextNonWhitespace();
+                }
             }
             
-            String name = map.get("name");
-            String program = map.get("program");
-            
-            if (name.isEmpty() || program.isEmpty()) {
-                throw new Exception("Fields cannot be empty");
+            if (nextNonWhitespace() != -1) {
+                throw new Exception("Unexpected data after JSON object");
             }
-            
             return new Student(-1, name, program);
         }
         
-        private static Map<String, String> parseJSON(String json) throws Exception {
-            Map<String, String> map = new HashMap<>();
-            json = json.trim();
-            
-            if (!json.startsWith("{") || !json.endsWith("}")) {
-                throw new Exception("Invalid JSON format");
+        private String readStringValue(String field) throws Exception {
+            if (nextNonWhitespace() != '"') {
+                throw new Exception("Field '" + field + "' must be a string");
+            }
+            readString();
+            return buffer.toString();
+        }
+        
+        /** Leser en streng (etter åpnende anførselstegn) inn i bufferet. */
+        private void readString() throws Exception {
+            buffer.setLength(0);
+            while (true) {
+                int c = next();
+                if (c == -1) {
+                    throw new Exception("Unterminated string");
+                } else if (c == '"') {
+                    return;
+                } else if (c == '\\') {
+                    buffer.append(readEscape());
+                } else if (c < 0x20) {
+                    throw new Exception("Control character in string");
+                } else {
+                    buffer.append((char) c);
+                }
+            }
+        }
+        
+        private char readEscape() throws Exception {
+            int c = next();
+            switch (c) {
+                case '"':  return '"';
+                case '\\': return '\\';
+                case '/':  return '/';
+                case 'b':  return '\b';
+                case 'f':  return '\f';
+                case 'n':  return '\n';
+                case 'r':  return '\r';
+                case 't':  return '\t';
+                case 'u':
+                    int code = 0;
+                    for (int i = 0; i < 4; i++) {
+                        int digit = Character.digit(next(), 16);
+                        if (digit < 0) {
+                            throw new Exception("Invalid unicode escape");
+                        }
+                        code = (code << 4) | digit;
+                    }
+                    return (char) code;
+                default:
+                    throw new Exception("Invalid escape sequence");
+            }
+        }
+        
+        /** Hopper over en vilkårlig JSON-verdi som starter med tegnet c. */
+        private void skipValue(int c, int depth) throws Exception {
+            if (depth > MAX_DEPTH) {
+                throw new Exception("JSON nested too deeply");
             }
             
-            String content = json.substring(1, json.length() - 1);
-            for (String pair : content.split(",")) {
-                String[] kv = pair.split(":");
-                if (kv.length == 2) {
-                    String key = kv[0].trim().replaceAll("\"", "");
-                    String value = kv[1].trim().replaceAll("\"", "");
-                    map.put(key, value);
+            if (c == '"') {
+                readString();
+            } else if (c == '{' || c == '[') {
+                int close = (c == '{') ? '}' : ']';
+                int d = nextNonWhitespace();
+                if (d == close) return;
+                while (true) {
+                    if (close == '}') {
+                        expect(d, '"');
+                        readString();
+                        expect(nextNonWhitespace(), ':');
+                        d = nextNonWhitespace();
+                    }
+                    skipValue(d, depth + 1);
+                    d = nextNonWhitespace();
+                    if (d == close) return;
+                    expect(d, ',');
+                    d = nextNonWhitespace();
                 }
+            } else {
+                skipLiteral(c);
             }
+        }
+        
+        /** Hopper over tall, true, false eller null. */
+        private void skipLiteral(int c) throws Exception {
+            buffer.setLength(0);
+            while (c != -1 && (Character.isLetterOrDigit(c) || c == '-' || c == '+' || c == '.')) {
+                buffer.append((char) c);
+                c = next();
+            }
+            pushedBack = c;
             
-            return map;
+            String literal = buffer.toString();
+            if (literal.equals("true") || literal.equals("false") || literal.equals("null")) {
+                return;
+            }
+            try {
+                Double.parseDouble(literal);
+            } catch (NumberFormatException e) {
+                throw new Exception("Invalid JSON value");
+            }
+        }
+        
+        private void expect(int actual, char expected) throws Exception {
+            if (actual != expected) {
+                throw new Exception(actual == -1
+                    ? "Unexpected end of JSON"
+                    : "Invalid JSON format: expected '" + expected + "'");
+            }
+        }
+        
+        private int nextNonWhitespace() throws IOException {
+            int c = next();
+            while (c == ' ' || c == '\t' || c == '\n' || c == '\r') {
+                c = next();
+            }
+            return c;
+        }
+        
+        private int next() throws IOException {
+            if (pushedBack != -2) {
+                int c = pushedBack;
+                pushedBack = -2;
+                return c;
+            }
+            return in.read();
+        }
+    }
+    
+    /** Kastes når request-kroppen er større enn MAX_BODY_BYTES. */
+    static class PayloadTooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+        
+        PayloadTooLargeException() {
+            super("Request body too large");
+        }
+    }
+    
+    /** Begrenser hvor mange bytes som kan leses fra request-kroppen. */
+    static class LimitedInputStream extends FilterInputStream {
+        private long remaining;
+        
+        LimitedInputStream(InputStream in, long limit) {
+            super(in);
+            this.remaining = limit;
+        }
+        
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1 && --remaining < 0) {
+                throw new PayloadTooLargeException();
+            }
+            return b;
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0 && (remaining -= n) < 0) {
+                throw new PayloadTooLargeException();
+            }
+            return n;
+        }
+    }
+    
+    static class ChangeEvent {
+        final long seq;
+        final String type;
+        final String data;
+        final String record; // Posten slik den står i loggen, for replikaene
+        
+        ChangeEvent(long seq, String type, String data, String record) {
+            this.seq = seq;
+            this.type = type;
+            this.data = data;
+            this.record = record;
+        }
+        
+        String toSSE() {
+            return "id: " + seq + "\nevent: " + type + "\ndata: " + data + "\n\n";
+        }
+    }
+    
+    /**
+     * Begrenset ringbuffer med endringshendelser.
+     * 
+     * Skrivere legger bare hendelsen i bufferet og vekker ventende lesere; de
+     * venter aldri på klientene. Hver SSE-klient leser i sitt eget tempo, og en
+     * klient som har falt lenger bak enn bufferet rekker, får en "reset"-hendelse.
+     */
+    static class ChangeFeed {
+        private final ChangeEvent[] ring;
+        private long lastSeq = 0;
+        
+        ChangeFeed(int capacity) {
+            this.ring = new ChangeEvent[capacity];
+        }
+        
+        synchronized long publish(String type, String data, String record) {
+            lastSeq++;
+            ring[(int) (lastSeq % ring.length)] = new ChangeEvent(lastSeq, type, data, record);
+            notifyAll();
+            return lastSeq;
+        }
+        
+        synchronized long lastSeq() {
+            return lastSeq;
+        }
+        
+        /** Om hendelsene etter afterSeq fortsatt finnes i bufferet. */
+        synchronized boolean canResumeAfter(long afterSeq) {
+            return afterSeq >= Math.max(0, lastSeq - ring.length) && afterSeq <= lastSeq;
+        }
+        
+        /**
+         * Venter til det finnes hendelser etter afterSeq (eller til tidsavbrudd).
+         * Returnerer null hvis afterSeq ikke lenger finnes i bufferet.
+         */
+        synchronized List<ChangeEvent> awaitAfter(long afterSeq, long timeoutMillis) 
+                throws InterruptedException {
+            if (lastSeq <= afterSeq) {
+                wait(timeoutMillis);
+            }
+            long oldest = Math.max(1, lastSeq - ring.length + 1);
+            if (afterSeq + 1 < oldest || afterSeq > lastSeq) {
+                return null;
+            }
+            List<ChangeEvent> events = new ArrayList<>((int) (lastSeq - afterSeq));
+            for (long seq = afterSeq + 1; seq <= lastSeq; seq++) {
+                events.add(ring[(int) (seq % ring.length)]);
+            }
+            return events;
         }
     }
     
     public static void main(String[] args) throws Exception {
+        students.addIndex("program", student -> student.program);
+        
+        if (args.length == 3 && "--convert".equals(args[0])) {
+            loadSnapshot(args[1]);
+            int count = saveSnapshot(args[2]);
+            System.out.println("Konverterte " + count + " studenter fra " + args[1] + " til " + args[2]);
+            return;
+        }
+        
         if (args.length < 2) {
             System.err.println("Bruk: java StudentCRUDAPI <port> <csv-fil>");
+            System.err.println("      java StudentCRUDAPI --convert <inn-fil> <ut-fil>");
             System.exit(1);
         }
         
         int port = Integer.parseInt(args[0]);
-        csvFilePath = args[1];
+        dataFilePath = args[1];
+        
+        loadSnapshot(dataFilePath);
+        int replayed = replayLog();
+        openLogSegment(lastLogSegment() + 1);
+        if (replayed > 0) {
+            System.out.println("Spilte av " + replayed + " endringer fra loggen");
+        }
         
-        loadStudentsFromCSV(csvFilePath);
+        if (WAL_FSYNC) {
+            Thread logSync = new Thread(StudentCRUDAPI::runLogSync, "log-sync");
+            logSync.setDaemon(true);
+            logSync.start();
+        }
+        
+        ScheduledExecutorService checkpointer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "checkpoint");
+            t.setDaemon(true);
+            return t;
+        });
+        checkpointer.scheduleWithFixedDelay(StudentCRUDAPI::runCheckpoint,
+            CHECKPOINT_INTERVAL_SECONDS, CHECKPOINT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(StudentCRUDAPI::shutdown));
         
-        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        HttpServer server = Http.createServer(port);
         
-        server.createContext("/api/students", StudentCRUDAPI::handleStudentsRequest);
-        server.createContext("/api/students/", StudentCRUDAPI::handleStudentRequest);
+        // Listen over alle studenter er en full skanning; POST og oppslag per id har egne grenser.
+        // Endringsstrømmen har allerede sin egen grense (MAX_CHANGE_SUBSCRIBERS).
+        HttpContext studentsContext = server.createContext("/api/students", StudentCRUDAPI::handleStudentsRequest);
+        studentsContext.getFilters().add(AdmissionControl.forScans("/api/students").onlyFor("GET"));
+        studentsContext.getFilters().add(AdmissionControl.forLookups("/api/students").onlyFor("POST"));
+        server.createContext("/api/students/", StudentCRUDAPI::handleStudentRequest)
+            .getFilters().add(AdmissionControl.forLookups("/api/students/{id}"));
+        server.createContext("/api/students/changes", StudentCRUDAPI::handleChangesRequest);
+        server.createContext("/api/students/programs", StudentCRUDAPI::handleProgramCountsRequest);
+        server.createContext("/replication/snapshot", StudentCRUDAPI::handleReplicationSnapshot);
+        server.createContext("/replication/log", StudentCRUDAPI::handleReplicationLog);
         
-        server.setExecutor(null);
+        // Egen tråd per forespørsel, siden SSE-klienter holder forbindelsen åpen
+        server.setExecutor(Executors.newCachedThreadPool());
         server.start();
         
         System.out.println("StudentCRUDAPI server startet på port " + port);
         System.out.println("Tilgjengelige endepunkter:");
         System.out.println("  GET    /api/students          - Hent alle studenter");
+        System.out.println("  GET    /api/students?program= - Hent studenter på et program");
+        System.out.println("  GET    /api/students/programs - Antall studenter per program");
         System.out.println("  GET    /api/students/{id}     - Hent student");
         System.out.println("  POST   /api/students          - Opprett ny student");
         System.out.println("  PUT    /api/students/{id}     - Oppdater student");
         System.out.println("  DELETE /api/students/{id}     - Slett student");
+        System.out.println("  GET    /api/students/changes  - Endringsstrøm (server-sent events)");
+        System.out.println("  GET    /replication/snapshot  - Øyeblikksbilde for lesereplikaer");
+        System.out.println("  GET    /replication/log       - Loggposter for lesereplikaer");
+        System.out.println("Sjekkpunkt hvert " + CHECKPOINT_INTERVAL_SECONDS + ". sekund");
     }
     
-    private static void loadStudentsFromCSV(String filePath) throws IOException {
-        List<String> lines = Files.readAllLines(Paths.get(filePath));
-        for (String line : lines) {
-            if (line.trim().isEmpty()) continue;
-            
-            String[] parts = line.split(",");
-            if (parts.length >= 3) {
-                try {
-                    int id = Integer.parseInt(parts[0].trim());
-                    String name = parts[1].trim();
-                    String program = parts[2].trim();
-                    students.put(id, new Student(id, name, program));
-                } catch (NumberFormatException e) {
-                    System.err.println("Feil ved parsing av linje: " + line);
-                }
-            }
-        }
-        System.out.println("Lastet inn " + students.size() + " studenter");
+    private static void loadSnapshot(String filePath) throws IOException {
+        TableStore.load(students, filePath);
+        System.out.println("Lastet inn " + students.size() + " studenter"
+            + (TableStore.isBinaryFile(filePath) ? " (binært format)" : ""));
     }
     
     private static void handleStudentsRequest(HttpExchange exchange) throws IOException {
@@ -140,7 +478,7 @@ public class StudentCRUDAPI {
         } else if ("POST".equals(method)) {
             handleCreateStudent(exchange);
         } else {
-            sendResponse(exchange, 405, "{\"error\":\"Method not allowed\"}");
+            Http.sendResponse(exchange, 405, "{\"error\":\"Method not allowed\"}");
         }
     }
     
@@ -150,7 +488,7 @@ public class StudentCRUDAPI {
         String[] parts = path.split("/");
         
         if (parts.length < 4) {
-            sendResponse(exchange, 400, "{\"error\":\"Invalid request\"}");
+            Http.sendResponse(exchange, 400, "{\"error\":\"Invalid request\"}");
             return;
         }
         
@@ -164,14 +502,182 @@ public class StudentCRUDAPI {
             } else if ("DELETE".equals(method)) {
                 handleDeleteStudent(exchange, studentId);
             } else {
-                sendResponse(exchange, 405, "{\"error\":\"Method not allowed\"}");
+                Http.sendResponse(exchange, 405, "{\"error\":\"Method not allowed\"}");
+            }
+        } catch (NumberFormatException e) {
+            Http.sendResponse(exchange, 400, "{\"error\":\"Invalid student ID\"}");
+        }
+    }
+    
+    /**
+     * GET /api/students/changes - strømmer endringer som server-sent events.
+     * Klienten kan fortsette der den slapp med Last-Event-ID.
+     */
+    private static void handleChangesRequest(HttpExchange exchange) throws IOException {
+        if (!"GET".equals(exchange.getRequestMethod())) {
+            Http.sendResponse(exchange, 405, "{\"error\":\"Method not allowed\"}");
+            return;
+        }
+        if (changeSubscribers.incrementAndGet() > MAX_CHANGE_SUBSCRIBERS) {
+            changeSubscribers.decrementAndGet();
+            Http.sendResponse(exchange, 503, "{\"error\":\"Too many subscribers\"}");
+            return;
+        }
+        
+        try {
+            long afterSeq = changeFeed.lastSeq();
+            String lastEventId = exchange.getRequestHeaders().getFirst("Last-Event-ID");
+            if (lastEventId != null) {
+                try {
+                    afterSeq = Long.parseLong(lastEventId.trim());
+                } catch (NumberFormatException e) {
+                    // Ugyldig ID - start fra nåværende posisjon
+                }
+            }
+            
+            exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+            exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+            exchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
+            exchange.sendResponseHeaders(200, 0);
+            
+            try (OutputStream os = exchange.getResponseBody()) {
+                while (true) {
+                    List<ChangeEvent> events = changeFeed.awaitAfter(afterSeq, HEARTBEAT_MILLIS);
+                    if (events == null) {
+                        // Klienten har falt bak bufferet (eller kommer fra før en omstart):
+                        // den må hente hele listen på nytt og fortsette herfra
+                        afterSeq = changeFeed.lastSeq();
+                        os.write(("id: " + afterSeq + "\nevent: reset\ndata: {}\n\n")
+                            .getBytes(StandardCharsets.UTF_8));
+                    } else if (events.isEmpty()) {
+                        os.write(": keepalive\n\n".getBytes(StandardCharsets.UTF_8));
+                    } else {
+                        for (ChangeEvent event : events) {
+                            os.write(event.toSSE().getBytes(StandardCharsets.UTF_8));
+                        }
+                        afterSeq = events.get(events.size() - 1).seq;
+                    }
+                    os.flush();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                // Klienten koblet fra
             }
+        } finally {
+            changeSubscribers.decrementAndGet();
+        }
+    }
+    
+    /**
+     * GET /replication/snapshot - hele tabellen som CSV, med posisjonen i
+     * endringsbufferet replikaen skal fortsette fra.
+     * 
+     * Posisjonen leses før tabellen, så øyeblikksbildet kan inneholde noen av
+     * endringene etter den. Det gjør ikke noe: hver post i loggen erstatter
+     * eller sletter en hel student, så å spille dem av en gang til gir samme
+     * tabell.
+     */
+    private static void handleReplicationSnapshot(HttpExchange exchange) throws IOException {
+        if (!"GET".equals(exchange.getRequestMethod())) {
+            Http.sendResponse(exchange, 405, "{\"error\":\"Method not allowed\"}");
+            return;
+        }
+        
+        long seq = changeFeed.lastSeq();
+        StringBuilder csv = new StringBuilder();
+        for (Student student : students.snapshot()) {
+            Student.SCHEMA.toCsv(student, csv);
+        }
+        byte[] body = csv.toString().getBytes(StandardCharsets.UTF_8);
+        
+        exchange.getResponseHeaders().set("Content-Type", "text/csv; charset=utf-8");
+        exchange.getResponseHeaders().set("X-Replication-Stream", replicationStream);
+        exchange.getResponseHeaders().set("X-Replication-Seq", String.valueOf(seq));
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body);
+        }
+    }
+    
+    /**
+     * GET /replication/log?stream=&after=&heartbeat= - strømmer loggposter etter
+     * posisjonen "after", én per linje: "<seq>,P,<id>,<navn>,<program>" eller
+     * "<seq>,D,<id>". Er det stille, sendes "<seq>,H" hvert heartbeat-millisekund,
+     * så replikaen vet at den fortsatt er à jour.
+     * 
+     * Deler grensen på antall samtidige strømmer med /api/students/changes.
+     */
+    private static void handleReplicationLog(HttpExchange exchange) throws IOException {
+        if (!"GET".equals(exchange.getRequestMethod())) {
+            Http.sendResponse(exchange, 405, "{\"error\":\"Method not allowed\"}");
+            return;
+        }
+        
+        String query = exchange.getRequestURI().getRawQuery();
+        long afterSeq;
+        long heartbeatMillis;
+        try {
+            afterSeq = Long.parseLong(String.valueOf(Http.queryParam(query, "after")));
+            String heartbeat = Http.queryParam(query, "heartbeat");
+            heartbeatMillis = heartbeat == null ? 1000 : Long.parseLong(heartbeat);
         } catch (NumberFormatException e) {
-            sendResponse(exchange, 400, "{\"error\":\"Invalid student ID\"}");
+            Http.sendResponse(exchange, 400, "{\"error\":\"Invalid replication position\"}");
+            return;
+        }
+        heartbeatMillis = Math.max(100, Math.min(HEARTBEAT_MILLIS, heartbeatMillis));
+        
+        if (!replicationStream.equals(Http.queryParam(query, "stream")) || !changeFeed.canResumeAfter(afterSeq)) {
+            Http.sendResponse(exchange, 410, "{\"error\":\"Replication position is no longer available\"}");
+            return;
+        }
+        if (changeSubscribers.incrementAndGet() > MAX_CHANGE_SUBSCRIBERS) {
+            changeSubscribers.decrementAndGet();
+            Http.sendResponse(exchange, 503, "{\"error\":\"Too many subscribers\"}");
+            return;
+        }
+        
+        try {
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+            exchange.sendResponseHeaders(200, 0);
+            
+            try (OutputStream os = exchange.getResponseBody()) {
+                while (true) {
+                    List<ChangeEvent> events = changeFeed.awaitAfter(afterSeq, heartbeatMillis);
+                    if (events == null) {
+                        // Replikaen leser for sakte og har falt bak bufferet; når den kobler
+                        // til igjen, får den 410 og henter et nytt øyeblikksbilde
+                        break;
+                    }
+                    StringBuilder lines = new StringBuilder();
+                    if (events.isEmpty()) {
+                        lines.append(afterSeq).append(",H\n");
+                    }
+                    for (ChangeEvent event : events) {
+                        lines.append(event.seq).append(',').append(event.record).append('\n');
+                        afterSeq = event.seq;
+                    }
+                    os.write(lines.toString().getBytes(StandardCharsets.UTF_8));
+                    os.flush();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                // Replikaen koblet fra
+            }
+        } finally {
+            changeSubscribers.decrementAndGet();
         }
     }
     
     private static void handleGetAllStudents(HttpExchange exchange) throws IOException {
+        String program = Http.queryParam(exchange.getRequestURI().getRawQuery(), "program");
+        if (program != null) {
+            handleGetStudentsByProgram(exchange, program);
+            return;
+        }
+        
         StringBuilder json = new StringBuilder("[");
         boolean first = true;
         for (Student student : students.values()) {
@@ -181,110 +687,438 @@ public class StudentCRUDAPI {
         }
         json.append("]");
         
-        sendResponse(exchange, 200, json.toString());
+        Http.sendResponse(exchange, 200, json.toString());
+    }
+    
+    /** GET /api/students?program=... - slår opp i sekundærindeksen, O(treff). */
+    private static void handleGetStudentsByProgram(HttpExchange exchange, String program) throws IOException {
+        Set<Integer> ids = students.lookup("program", program);
+        
+        StringBuilder json = new StringBuilder("[");
+        int count = 0;
+        for (int id : ids) {
+            Student student = students.get(id);
+            if (student == null || !student.program.equals(program)) continue; // endret underveis
+            if (count > 0) json.append(",");
+            json.append(student.toJSON());
+            count++;
+        }
+        json.append("]");
+        
+        exchange.getResponseHeaders().set("X-Total-Count", String.valueOf(count));
+        Http.sendResponse(exchange, 200, json.toString());
+    }
+    
+    /** GET /api/students/programs - antall studenter per program, rett fra indeksen. */
+    private static void handleProgramCountsRequest(HttpExchange exchange) throws IOException {
+        if (!"GET".equals(exchange.getRequestMethod())) {
+            Http.sendResponse(exchange, 405, "{\"error\":\"Method not allowed\"}");
+            return;
+        }
+        
+        StringBuilder json = new StringBuilder("{");
+        boolean first = true;
+        for (Map.Entry<String, Integer> entry : students.countBy("program").entrySet()) {
+            if (!first) json.append(",");
+            json.append("\"").append(Http.escapeJSON(entry.getKey())).append("\":").append(entry.getValue());
+            first = false;
+        }
+        json.append("}");
+        
+        Http.sendResponse(exchange, 200, json.toString());
     }
     
     private static void handleGetStudent(HttpExchange exchange, int studentId) throws IOException {
         if (students.containsKey(studentId)) {
             Student student = students.get(studentId);
-            sendResponse(exchange, 200, student.toJSON());
+            Http.sendResponse(exchange, 200, student.toJSON());
         } else {
-            sendResponse(exchange, 404, "{\"error\":\"Student not found\"}");
+            Http.sendResponse(exchange, 404, "{\"error\":\"Student not found\"}");
         }
     }
     
     private static void handleCreateStudent(HttpExchange exchange) throws IOException {
         try {
-            String body = readRequestBody(exchange);
-            Student newStudent = Student.fromJSON(body);
+            Student parsed = parseStudent(openRequestBody(exchange));
             
-            // Finn neste ID
-            int newId = students.keySet().stream().mapToInt(Integer::intValue).max().orElse(0) + 1;
-            newStudent.id = newId;
-            
-            students.put(newId, newStudent);
-            saveStudentsToCSV();
+            Student newStudent;
+            long position;
+            synchronized (writeLock) {
+                // Finn neste ID
+                int newId = students.keys().stream().mapToInt(Integer::intValue).max().orElse(0) + 1;
+                newStudent = new Student(newId, parsed.name, parsed.program);
+                position = putStudent(newStudent, "create");
+            }
             
-            sendResponse(exchange, 201, newStudent.toJSON());
+            if (!awaitDurable(position)) {
+                Http.sendResponse(exchange, 500, "{\"error\":\"Could not write to log\"}");
+                return;
+            }
+            Http.sendResponse(exchange, 201, newStudent.toJSON());
+        } catch (PayloadTooLargeException e) {
+            Http.sendResponse(exchange, 413, "{\"error\":\"" + e.getMessage() + "\"}");
         } catch (Exception e) {
-            sendResponse(exchange, 400, "{\"error\":\"" + e.getMessage() + "\"}");
+            Http.sendResponse(exchange, 400, "{\"error\":\"" + Http.escapeJSON(e.getMessage()) + "\"}");
         }
     }
     
+    /**
+     * PUT /api/students/{id}. Med "If-None-Match: *" opprettes studenten med
+     * denne id-en i stedet, bare hvis den ikke finnes (412 ellers); det bruker
+     * StudentShardRouter, som deler ut id-er og flytter studenter mellom noder.
+     */
     private static void handleUpdateStudent(HttpExchange exchange, int studentId) throws IOException {
-        if (!students.containsKey(studentId)) {
-            sendResponse(exchange, 404, "{\"error\":\"Student not found\"}");
+        boolean createOnly = "*".equals(exchange.getRequestHeaders().getFirst("If-None-Match"));
+        if (!createOnly && !students.containsKey(studentId)) {
+            Http.sendResponse(exchange, 404, "{\"error\":\"Student not found\"}");
             return;
         }
         
         try {
-            String body = readRequestBody(exchange);
-            Student updated = Student.fromJSON(body);
+            Student parsed = parseStudent(openRequestBody(exchange));
             
-            Student existing = students.get(studentId);
-            existing.name = updated.name;
-            existing.program = updated.program;
-            
-            saveStudentsToCSV();
+            // Erstatt posten i stedet for å endre den på stedet
+            Student updated = new Student(studentId, parsed.name, parsed.program);
+            long position;
+            synchronized (writeLock) {
+                boolean exists = students.containsKey(studentId);
+                if (createOnly && exists) {
+                    Http.sendResponse(exchange, 412, "{\"error\":\"Student already exists\"}");
+                    return;
+                }
+                if (!createOnly && !exists) {
+                    Http.sendResponse(exchange, 404, "{\"error\":\"Student not found\"}");
+                    return;
+                }
+                position = putStudent(updated, createOnly ? "create" : "update");
+            }
             
-            sendResponse(exchange, 200, existing.toJSON());
+            if (!awaitDurable(position)) {
+                Http.sendResponse(exchange, 500, "{\"error\":\"Could not write to log\"}");
+                return;
+            }
+            Http.sendResponse(exchange, createOnly ? 201 : 200, updated.toJSON());
+        } catch (PayloadTooLargeException e) {
+            Http.sendResponse(exchange, 413, "{\"error\":\"" + e.getMessage() + "\"}");
         } catch (Exception e) {
-            sendResponse(exchange, 400, "{\"error\":\"" + e.getMessage() + "\"}");
+            Http.sendResponse(exchange, 400, "{\"error\":\"" + Http.escapeJSON(e.getMessage()) + "\"}");
         }
     }
     
     private static void handleDeleteStudent(HttpExchange exchange, int studentId) throws IOException {
         if (!students.containsKey(studentId)) {
-            sendResponse(exchange, 404, "{\"error\":\"Student not found\"}");
+            Http.sendResponse(exchange, 404, "{\"error\":\"Student not found\"}");
             return;
         }
         
-        students.remove(studentId);
-        saveStudentsToCSV();
+        long position;
+        synchronized (writeLock) {
+            if (!students.containsKey(studentId)) {
+                Http.sendResponse(exchange, 404, "{\"error\":\"Student not found\"}");
+                return;
+            }
+            position = removeStudent(studentId);
+        }
         
-        sendResponse(exchange, 204, "");
+        if (!awaitDurable(position)) {
+            Http.sendResponse(exchange, 500, "{\"error\":\"Could not write to log\"}");
+            return;
+        }
+        Http.sendResponse(exchange, 204, "");
     }
     
-    private static void saveStudentsToCSV() throws IOException {
-        StringBuilder csv = new StringBuilder();
-        for (Student student : students.values()) {
-            csv.append(student.id).append(",")
-               .append(student.name).append(",")
-               .append(student.program).append("\n");
+    // Endringer: skriv til loggen først, oppdater deretter minnet (kalles med writeLock).
+    // Returnerer postens posisjon i loggen; svaret sendes først etter awaitDurable.
+    
+    private static long putStudent(Student student, String changeType) throws IOException {
+        String record = "P," + student.id + "," + student.name + "," + student.program;
+        long position = appendLog(record);
+        students.put(student);
+        changeFeed.publish(changeType,
+            "{\"type\":\"" + changeType + "\",\"id\":" + student.id + ",\"student\":" + student.toJSON() + "}",
+            record);
+        return position;
+    }
+    
+    private static long removeStudent(int studentId) throws IOException {
+        String record = "D," + studentId;
+        long position = appendLog(record);
+        students.remove(studentId);
+        changeFeed.publish("delete", "{\"type\":\"delete\",\"id\":" + studentId + "}", record);
+        return position;
+    }
+    
+    private static long appendLog(String record) throws IOException {
+        currentLog.write((record + "\n").getBytes(StandardCharsets.UTF_8));
+        currentLog.flush();
+        currentLogRecords++;
+        return ++appendedRecords;
+    }
+    
+    /**
+     * Venter til loggen er fsyncet til og med posisjonen. Kalles etter at writeLock
+     * er sluppet, så andre skrivere kan legge til poster som blir med i samme fsync.
+     * Returnerer false hvis fsync har feilet; da bekreftes ingen flere endringer,
+     * siden operativsystemet kan ha kastet sidene som ikke ble skrevet.
+     */
+    private static boolean awaitDurable(long position) {
+        if (!WAL_FSYNC) {
+            return true;
+        }
+        synchronized (syncLock) {
+            if (position > syncRequested) {
+                syncRequested = position;
+                syncLock.notifyAll();
+            }
+            while (syncedRecords < position) {
+                if (syncFailure != null) {
+                    return false;
+                }
+                try {
+                    syncLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+    
+    private static void runLogSync() {
+        try {
+            while (true) {
+                synchronized (syncLock) {
+                    while (syncRequested <= syncedRecords) {
+                        syncLock.wait();
+                    }
+                    if (syncFailure != null) {
+                        return;
+                    }
+                }
+                
+                FileChannel channel;
+                long target;
+                synchronized (writeLock) {
+                    channel = currentLogFile.getChannel();
+                    target = appendedRecords;
+                }
+                syncLog(channel, target);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /** Fsyncer segmentet og vekker skrivere som venter på posisjoner til og med target. */
+    private static void syncLog(FileChannel channel, long target) {
+        synchronized (syncLock) {
+            if (target <= syncedRecords) {
+                return; // en rotering har allerede fsyncet segmentet
+            }
+            try {
+                channel.force(false);
+                syncedRecords = target;
+            } catch (IOException e) {
+                syncFailure = e;
+                System.err.println("Feil ved fsync av logg: " + e.getMessage());
+            }
+            syncLock.notifyAll();
+        }
+    }
+    
+    /** Lukker segmentet; det fsynces først, så ventende skrivere slipper neste runde (kalles med writeLock). */
+    private static void closeLogSegment() throws IOException {
+        currentLog.flush();
+        if (WAL_FSYNC) {
+            syncLog(currentLogFile.getChannel(), appendedRecords);
+        }
+        currentLog.close();
+    }
+    
+    private static Path logSegmentPath(int segment) {
+        return Paths.get(dataFilePath + ".log." + segment);
+    }
+    
+    /** Finner numrene på eksisterende loggsegmenter, i stigende rekkefølge. */
+    private static List<Integer> listLogSegments() throws IOException {
+        Path dataPath = Paths.get(dataFilePath).toAbsolutePath();
+        String prefix = dataPath.getFileName() + ".log.";
+        List<Integer> segments = new ArrayList<>();
+        try (DirectoryStream<Path> dir = Files.newDirectoryStream(dataPath.getParent(), prefix + "*")) {
+            for (Path file : dir) {
+                try {
+                    segments.add(Integer.parseInt(file.getFileName().toString().substring(prefix.length())));
+                } catch (NumberFormatException e) {
+                    // Ikke et loggsegment
+                }
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+    
+    private static int lastLogSegment() throws IOException {
+        List<Integer> segments = listLogSegments();
+        return segments.isEmpty() ? 0 : segments.get(segments.size() - 1);
+    }
+    
+    private static void openLogSegment(int segment) throws IOException {
+        Path segmentPath = logSegmentPath(segment);
+        currentLogFile = new FileOutputStream(segmentPath.toFile(), true);
+        currentLog = new BufferedOutputStream(currentLogFile);
+        currentSegment = segment;
+        currentLogRecords = 0;
+        if (WAL_FSYNC) {
+            syncDirectory(segmentPath.toAbsolutePath().getParent());
+        }
+    }
+    
+    /** Fsyncer katalogen, så et nytt segment ikke forsvinner ved strømbrudd. Går ikke på Windows. */
+    private static void syncDirectory(Path dir) {
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Windows åpner ikke kataloger som filer; der hoppes dette over
         }
-        Files.write(Paths.get(csvFilePath), csv.toString().getBytes());
-        System.out.println("Lagret " + students.size() + " studenter til CSV");
     }
     
-    private static String readRequestBody(HttpExchange exchange) throws IOException {
-        InputStream is = exchange.getRequestBody();
-        ByteArrayOutputStream result = new ByteArrayOutputStream();
-        byte[] buffer = new byte[1024];
-        int length;
-        while ((length = is.read(buffer)) != -1) {
-            result.write(buffer, 0, length);
+    /**
+     * Spiller av alle loggsegmenter over sjekkpunktet. Postene inneholder hele
+     * tilstanden til studenten, så avspilling er idempotent: en post som allerede
+     * er med i sjekkpunktet gir samme resultat når den spilles av på nytt.
+     */
+    private static int replayLog() throws IOException {
+        int replayed = 0;
+        for (int segment : listLogSegments()) {
+            Path segmentPath = logSegmentPath(segment);
+            JfrEvents.FileIo event = JfrEvents.FileIo.start("replay", segmentPath.toString());
+            int replayedBefore = replayed;
+            for (String line : Files.readAllLines(segmentPath, StandardCharsets.UTF_8)) {
+                String[] parts = line.split(",");
+                try {
+                    if (parts.length == 4 && parts[0].equals("P")) {
+                        int id = Integer.parseInt(parts[1]);
+                        students.put(new Student(id, parts[2], parts[3]));
+                        replayed++;
+                    } else if (parts.length == 2 && parts[0].equals("D")) {
+                        students.remove(Integer.parseInt(parts[1]));
+                        replayed++;
+                    } else if (!line.isEmpty()) {
+                        System.err.println("Ignorerer ufullstendig loggpost: " + line);
+                    }
+                } catch (NumberFormatException e) {
+                    System.err.println("Ignorerer ufullstendig loggpost: " + line);
+                }
+            }
+            event.finish(replayed - replayedBefore);
         }
-        return result.toString("UTF-8");
+        return replayed;
     }
     
-    private static String escapeJSON(String str) {
-        if (str == null) return "";
-        return str.replace("\\", "\\\\")
-                  .replace("\"", "\\\"")
-                  .replace("\n", "\\n")
-                  .replace("\r", "\\r");
+    /**
+     * Skriver et nytt sjekkpunkt og sletter loggsegmentene det dekker.
+     * 
+     * Skrivere holdes bare tilbake mens loggen roteres til et nytt segment.
+     * Tabellen kopieres uten lås etterpå, så kopien kan inneholde noen av
+     * endringene i det nye segmentet; de spilles trygt av på nytt.
+     * 
+     * checkpointLock holdes hele veien, så to sjekkpunkter aldri skriver
+     * samme midlertidige fil eller sletter segmenter det andre ikke dekker.
+     */
+    private static void runCheckpoint() {
+        synchronized (checkpointLock) {
+            if (checkpointsStopped) {
+                return;
+            }
+            try {
+                int coveredSegment;
+                synchronized (writeLock) {
+                    // Ingenting å gjøre hvis loggen er tom og ingen eldre segmenter gjenstår
+                    if (currentLogRecords == 0 && listLogSegments().size() <= 1) {
+                        return;
+                    }
+                    closeLogSegment();
+                    coveredSegment = currentSegment;
+                    openLogSegment(coveredSegment + 1);
+                }
+                
+                int count = saveSnapshot(dataFilePath);
+                
+                for (int segment : listLogSegments()) {
+                    if (segment <= coveredSegment) {
+                        Files.deleteIfExists(logSegmentPath(segment));
+                    }
+                }
+                System.out.println("Sjekkpunkt skrevet med " + count + " studenter");
+            } catch (IOException e) {
+                System.err.println("Feil ved skriving av sjekkpunkt: " + e.getMessage());
+            }
+        }
     }
     
-    private static void sendResponse(HttpExchange exchange, int statusCode, String response) 
-            throws IOException {
-        exchange.getResponseHeaders().set("Content-Type", "application/json");
-        exchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
+    /**
+     * Skriver et siste sjekkpunkt ved avslutning, så neste oppstart ikke trenger
+     * loggen. Et planlagt sjekkpunkt som starter etterpå, gjør ingenting.
+     */
+    private static void shutdown() {
+        synchronized (checkpointLock) {
+            runCheckpoint();
+            checkpointsStopped = true;
+            synchronized (writeLock) {
+                try {
+                    closeLogSegment();
+                    if (currentLogRecords == 0) {
+                        Files.deleteIfExists(logSegmentPath(currentSegment));
+                    }
+                } catch (IOException e) {
+                    System.err.println("Feil ved lukking av logg: " + e.getMessage());
+                }
+            }
+        }
+    }
+    
+    private static int saveSnapshot(String filePath) throws IOException {
+        return TableStore.save(students, filePath);
+    }
+    
+    /** Leser og validerer en student fra request-kroppen (id settes av kalleren). */
+    private static Student parseStudent(InputStream body) throws Exception {
+        // Strømmende parsing direkte fra request-kroppen (ingen mellomliggende Map)
+        Student student = new StudentJsonReader(body).readStudent();
+        
+        if (student.name == null || student.program == null) {
+            throw new Exception("Missing required fields: name, program");
+        }
+        
+        if (student.name.isEmpty() || student.program.isEmpty()) {
+            throw new Exception("Fields cannot be empty");
+        }
         
-        byte[] responseBytes = response.getBytes();
-        exchange.sendResponseHeaders(statusCode, responseBytes.length);
+        // CSV-filen bruker komma og linjeskift som skilletegn
+        if (!isStorable(student.name) || !isStorable(student.program)) {
+            throw new Exception("Fields cannot contain commas or line breaks");
+        }
         
-        OutputStream os = exchange.getResponseBody();
-        os.write(responseBytes);
-        os.close();
+        return student;
+    }
+    
+    private static boolean isStorable(String value) {
+        return value.indexOf(',') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0;
+    }
+    
+    private static InputStream openRequestBody(HttpExchange exchange) throws IOException {
+        // Avvis for store forespørsler tidlig, før kroppen leses
+        String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+        if (contentLength != null) {
+            try {
+                if (Long.parseLong(contentLength.trim()) > MAX_BODY_BYTES) {
+                    throw new PayloadTooLargeException();
+                }
+            } catch (NumberFormatException e) {
+                // Ugyldig header - grensen håndheves uansett under lesing
+            }
+        }
+        return new LimitedInputStream(exchange.getRequestBody(), MAX_BODY_BYTES);
     }
 }
@@ -0,0 +1,700 @@
+import com.sun.net.httpserver.*;
+import java.io.*;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Ruter som sprer studenttabellen over flere StudentCRUDAPI-prosesser (shards).
+ * 
+ * Hver student-id hører til én shard, bestemt med konsistent hashing: hver
+ * shard har mange virtuelle punkter på en ring, og id-en eies av første punkt
+ * etter id-ens hash. GET/PUT/DELETE på /api/students/{id} sendes videre til
+ * eieren. /api/students og /api/students/programs spørres mot alle shards
+ * samtidig og slås sammen (scatter-gather). Ruteren deler ut nye id-er selv
+ * og oppretter studenten hos eieren med PUT og "If-None-Match: *".
+ * 
+ * En ny shard legges til med POST /admin/shards?url=... Bare id-ene som nå
+ * eies av den nye sharden flyttes (omtrent 1/N), én og én i bakgrunnen. Ber
+ * en klient om en id som ikke er flyttet ennå, flyttes den først. Stopper
+ * ruteren midt i en flytting, startes den med den gamle listen og sharden
+ * legges til på nytt; flyttingen er idempotent. Feiler gjennomgangen (en shard
+ * svarer ikke), prøves den på nytt med økende pause (1 s, doblet opp til
+ * 60 s) til den er ferdig; feilen og antall forsøk vises i GET /admin/shards.
+ * 
+ * Shards som ikke svarer ved oppstart, merkes som nede og vises under "down"
+ * i GET /admin/shards; ruteren starter med de andre. Forespørsler til id-er
+ * som eies av en shard som er nede, får 502, og sharden merkes oppe igjen
+ * når den svarer. Svarer eieren 412 på en ny id (den finnes allerede, f.eks.
+ * fordi sharden var nede da ruteren startet), hentes høyeste id fra sharden
+ * og neste id settes forbi den. Etter MAX_CREATE_ATTEMPTS forsøk gis 503.
+ * 
+ * Bruk:
+ *   javac -sourcepath ../felles -d . StudentCRUDAPI.java StudentShardRouter.java
+ *   java StudentCRUDAPI 8201 shard1.csv
+ *   java StudentCRUDAPI 8202 shard2.csv
+ *   java StudentShardRouter 8200 http://localhost:8201 http://localhost:8202
+ * 
+ * Test:
+ *   curl http://localhost:8200/api/students
+ *   curl -X POST "http://localhost:8200/admin/shards?url=http://localhost:8203"
+ *   curl http://localhost:8200/admin/shards
+ * 
+ * Endringsstrømmen (/api/students/changes) rutes ikke; abonner på hver shard.
+ */
+public class StudentShardRouter {
+    
+    private static final int VIRTUAL_NODES = Integer.getInteger("shards.vnodes", 128);
+    private static final Duration SHARD_TIMEOUT = Duration.ofSeconds(5);
+    private static final int MAX_BODY_BYTES = 16 * 1024;
+    private static final int MAX_CREATE_ATTEMPTS = 5;
+    private static final long MAX_REBALANCE_BACKOFF_MILLIS = 60_000;
+    
+    private static final HttpClient client = HttpClient.newBuilder()
+        .connectTimeout(SHARD_TIMEOUT)
+        .executor(Executors.newCachedThreadPool())
+        .build();
+    
+    private static volatile Topology topology;
+    private static final AtomicInteger nextId = new AtomicInteger();
+    // Shards som ikke svarte på siste forespørsel
+    private static final Set<String> downShards = ConcurrentHashMap.newKeySet();
+    
+    // Flytting av en id tar skrivelåsen for id-en; vanlige forespørsler tar leselåsen
+    private static final ReadWriteLock[] keyLocks = new ReadWriteLock[256];
+    // Sammenslåtte lister under flytting tar skrivelåsen, så ingen id er "underveis"
+    private static final ReentrantReadWriteLock listingLock = new ReentrantReadWriteLock();
+    
+    static {
+        for (int i = 0; i < keyLocks.length; i++) {
+            keyLocks[i] = new ReentrantReadWriteLock();
+        }
+    }
+    
+    /**
+     * Uforanderlig hash-ring. Å legge til en shard gir en ny ring, så
+     * forespørsler underveis alltid ser én hel ring.
+     */
+    static class HashRing {
+        final List<String> shards;
+        private final TreeMap<Long, String> points = new TreeMap<>();
+        
+        HashRing(List<String> shards) {
+            this.shards = Collections.unmodifiableList(new ArrayList<>(shards));
+            for (String shard : shards) {
+                for (int i = 0; i < VIRTUAL_NODES; i++) {
+                    points.put(hash(shard + "#" + i), shard);
+                }
+            }
+        }
+        
+        String owner(int studentId) {
+            Map.Entry<Long, String> point = points.ceilingEntry(mix(studentId));
+            return point != null ? point.getValue() : points.firstEntry().getValue();
+        }
+        
+        HashRing with(String shard) {
+            List<String> extended = new ArrayList<>(shards);
+            extended.add(shard);
+            return new HashRing(extended);
+        }
+        
+        /** FNV-1a over UTF-8, deretter blandet så nabostrenger spres over hele ringen. */
+        static long hash(String key) {
+            long h = 0xcbf29ce484222325L;
+            for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+                h = (h ^ (b & 0xff)) * 0x100000001b3L;
+            }
+            return mix(h);
+        }
+        
+        /** Sluttblandingen fra MurmurHash3 (fmix64). */
+        static long mix(long h) {
+            h ^= h >>> 33;
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            h *= 0xc4ceb9fe1a85ec53L;
+            h ^= h >>> 33;
+            return h;
+        }
+    }
+    
+    /**
+     * Ringen og en eventuell flytting, byttet ut samlet, så en forespørsel
+     * aldri ser ny ring sammen med gammel flyttestatus.
+     */
+    static class Topology {
+        final HashRing ring;
+        final Rebalance rebalance;
+        
+        Topology(HashRing ring, Rebalance rebalance) {
+            this.ring = ring;
+            this.rebalance = rebalance;
+        }
+    }
+    
+    /** En pågående flytting av id-er til en ny shard. */
+    static class Rebalance {
+        final HashRing previous;
+        final HashRing next;
+        final String target;
+        final Set<Integer> done = ConcurrentHashMap.newKeySet();
+        final AtomicInteger moved = new AtomicInteger();
+        volatile String failure; // siste feil i bakgrunnsflyttingen, null hvis ingen
+        volatile int attempts;
+        
+        Rebalance(HashRing previous, HashRing next, String target) {
+            this.previous = previous;
+            this.next = next;
+            this.target = target;
+        }
+        
+        /** Ligger id-en fortsatt kanskje hos en annen shard enn eieren i den nye ringen? */
+        boolean pending(int studentId) {
+            return next.owner(studentId).equals(target) && !done.contains(studentId);
+        }
+    }
+    
+    /** Svar fra en shard: status, kropp og eventuelt Retry-After. */
+    static class ShardResponse {
+        final int status;
+        final byte[] body;
+        final String retryAfter;
+        
+        ShardResponse(HttpResponse<byte[]> response) {
+            this.status = response.statusCode();
+            this.body = response.body();
+            this.retryAfter = response.headers().firstValue("Retry-After").orElse(null);
+        }
+        
+        String text() {
+            return new String(body, StandardCharsets.UTF_8);
+        }
+    }
+    
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Bruk: java StudentShardRouter <port> <shard-url> [shard-url ...]");
+            System.exit(1);
+        }
+        
+        int port = Integer.parseInt(args[0]);
+        List<String> shards = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            shards.add(normalizeUrl(args[i]));
+        }
+        topology = new Topology(new HashRing(shards), null);
+        
+        // Neste id må være større enn alle id-er som finnes på noen shard.
+        // Shards som ikke svarer nå, merkes som nede; id-ene deres fanges opp av 412 senere.
+        int maxId = 0;
+        for (String shard : shards) {
+            try {
+                maxId = Math.max(maxId, maxStudentId(shard));
+            } catch (IOException e) {
+                System.err.println("Shard " + shard + " svarer ikke, merkes som nede");
+            }
+        }
+        if (downShards.size() == shards.size()) {
+            System.err.println("Ingen shards svarer");
+            System.exit(1);
+        }
+        nextId.set(maxId);
+        System.out.println("Fant studenter med id opp til " + maxId + " på "
+            + (shards.size() - downShards.size()) + " av " + shards.size() + " shards");
+        
+        HttpServer server = Http.createServer(port);
+        
+        server.createContext("/api/students", StudentShardRouter::handleStudentsRequest);
+        server.createContext("/api/students/", StudentShardRouter::handleStudentRequest);
+        server.createContext("/api/students/programs", StudentShardRouter::handleProgramCountsRequest);
+        server.createContext("/api/students/changes", exchange -> Http.sendResponse(exchange, 501,
+            "{\"error\":\"Not routed; subscribe to /api/students/changes on each shard\"}"));
+        server.createContext("/admin/shards", StudentShardRouter::handleShardsRequest);
+        server.createContext("/health", exchange -> Http.sendResponse(exchange, 200, "{\"status\":\"OK\"}"));
+        
+        // Hver forespørsel venter på en eller flere shards
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        
+        System.out.println("StudentShardRouter startet på port " + port);
+        System.out.println("Shards: " + shards);
+        System.out.println("  GET    /api/students[?program=] - Fra alle shards, slått sammen");
+        System.out.println("  GET    /api/students/programs   - Summert over alle shards");
+        System.out.println("  POST   /api/students            - Opprett (id deles ut av ruteren)");
+        System.out.println("  GET/PUT/DELETE /api/students/{id} - Til shard som eier id-en");
+        System.out.println("  GET    /admin/shards            - Shards og status for flytting");
+        System.out.println("  POST   /admin/shards?url=...    - Legg til shard og flytt id-er dit");
+    }
+    
+    // ==================== Ruting av enkelt-id-er ====================
+    
+    private static void handleStudentRequest(HttpExchange exchange) throws IOException {
+        String[] parts = exchange.getRequestURI().getPath().split("/");
+        if (parts.length < 4) {
+            Http.sendResponse(exchange, 400, "{\"error\":\"Invalid request\"}");
+            return;
+        }
+        int studentId;
+        try {
+            studentId = Integer.parseInt(parts[3]);
+        } catch (NumberFormatException e) {
+            Http.sendResponse(exchange, 400, "{\"error\":\"Invalid student ID\"}");
+            return;
+        }
+        
+        String method = exchange.getRequestMethod();
+        byte[] body = readBody(exchange);
+        if (body == null) {
+            Http.sendResponse(exchange, 413, "{\"error\":\"Request body too large\"}");
+            return;
+        }
+        
+        try {
+            ShardResponse response = sendToOwner(studentId, method, body,
+                exchange.getRequestHeaders().getFirst("If-None-Match"));
+            relay(exchange, response);
+        } catch (IOException e) {
+            Http.sendResponse(exchange, 502, "{\"error\":\"" + Http.escapeJSON(e.getMessage()) + "\"}");
+        }
+    }
+    
+    private static void handleStudentsRequest(HttpExchange exchange) throws IOException {
+        String method = exchange.getRequestMethod();
+        try {
+            if ("GET".equals(method)) {
+                String query = exchange.getRequestURI().getRawQuery();
+                Collection<String> students = gatherArrays("/api/students" + (query != null ? "?" + query : "")).values();
+                exchange.getResponseHeaders().set("X-Total-Count", String.valueOf(students.size()));
+                Http.sendResponse(exchange, 200, "[" + String.join(",", students) + "]");
+            } else if ("POST".equals(method)) {
+                handleCreateStudent(exchange);
+            } else {
+                Http.sendResponse(exchange, 405, "{\"error\":\"Method not allowed\"}");
+            }
+        } catch (IOException e) {
+            Http.sendResponse(exchange, 502, "{\"error\":\"" + Http.escapeJSON(e.getMessage()) + "\"}");
+        }
+    }
+    
+    /**
+     * POST: ruteren deler ut id-en, og eieren oppretter studenten med PUT og
+     * If-None-Match. Svarer eieren 412, finnes id-en allerede (opprettet direkte
+     * på en shard, eller sharden var nede ved oppstart); da settes neste id forbi
+     * høyeste id hos eieren før neste forsøk.
+     */
+    private static void handleCreateStudent(HttpExchange exchange) throws IOException {
+        byte[] body = readBody(exchange);
+        if (body == null) {
+            Http.sendResponse(exchange, 413, "{\"error\":\"Request body too large\"}");
+            return;
+        }
+        for (int attempt = 0; attempt < MAX_CREATE_ATTEMPTS; attempt++) {
+            int studentId = nextId.incrementAndGet();
+            ShardResponse response = sendToOwner(studentId, "PUT", body, "*");
+            if (response.status != 412) {
+                relay(exchange, response);
+                return;
+            }
+            int maxId = maxStudentId(topology.ring.owner(studentId));
+            nextId.accumulateAndGet(maxId, Math::max);
+        }
+        exchange.getResponseHeaders().set("Retry-After", "1");
+        Http.sendResponse(exchange, 503, "{\"error\":\"Could not allocate a student ID\"}");
+    }
+    
+    private static void handleProgramCountsRequest(HttpExchange exchange) throws IOException {
+        if (!"GET".equals(exchange.getRequestMethod())) {
+            Http.sendResponse(exchange, 405, "{\"error\":\"Method not allowed\"}");
+            return;
+        }
+        try {
+            SortedMap<String, Integer> totals = new TreeMap<>();
+            for (ShardResponse response : scatter("/api/students/programs")) {
+                parseCounts(response.text(), totals);
+            }
+            StringBuilder json = new StringBuilder("{");
+            for (Map.Entry<String, Integer> entry : totals.entrySet()) {
+                if (json.length() > 1) json.append(",");
+                json.append(entry.getKey()).append(":").append(entry.getValue());
+            }
+            json.append("}");
+            Http.sendResponse(exchange, 200, json.toString());
+        } catch (IOException e) {
+            Http.sendResponse(exchange, 502, "{\"error\":\"" + Http.escapeJSON(e.getMessage()) + "\"}");
+        }
+    }
+    
+    /**
+     * Sender forespørselen til sharden som eier id-en. Under flytting flyttes
+     * id-en først hvis den ikke er flyttet ennå. Leselåsen for id-en holdes
+     * mens forespørselen pågår, så flyttingen venter på den og ser resultatet.
+     */
+    private static ShardResponse sendToOwner(int studentId, String method, byte[] body, String ifNoneMatch)
+            throws IOException {
+        ReadWriteLock lock = keyLock(studentId);
+        while (true) {
+            Topology current = topology;
+            if (current.rebalance != null && current.rebalance.pending(studentId)) {
+                moveStudent(current.rebalance, studentId);
+            }
+            lock.readLock().lock();
+            try {
+                if (current == topology) {
+                    return send(current.ring.owner(studentId), method, "/api/students/" + studentId,
+                        body, ifNoneMatch);
+                }
+                // En shard ble lagt til i mellomtiden; sjekk på nytt
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+    }
+    
+    // ==================== Shards og flytting ====================
+    
+    private static void handleShardsRequest(HttpExchange exchange) throws IOException {
+        String method = exchange.getRequestMethod();
+        if ("POST".equals(method)) {
+            String url = Http.queryParam(exchange.getRequestURI().getRawQuery(), "url");
+            if (url == null || !url.startsWith("http://")) {
+                Http.sendResponse(exchange, 400, "{\"error\":\"Missing or invalid url parameter\"}");
+                return;
+            }
+            url = normalizeUrl(url);
+            try {
+                send(url, "GET", "/api/students/programs", new byte[0], null);
+            } catch (IOException e) {
+                Http.sendResponse(exchange, 502, "{\"error\":\"Shard is not reachable\"}");
+                return;
+            }
+            synchronized (StudentShardRouter.class) {
+                Topology current = topology;
+                if (current.ring.shards.contains(url)) {
+                    Http.sendResponse(exchange, 409, "{\"error\":\"Shard already added\"}");
+                    return;
+                }
+                if (current.rebalance != null) {
+                    Http.sendResponse(exchange, 409, "{\"error\":\"Rebalance already in progress\"}");
+                    return;
+                }
+                Rebalance rebalance = new Rebalance(current.ring, current.ring.with(url), url);
+                topology = new Topology(rebalance.next, rebalance);
+            }
+            Thread mover = new Thread(StudentShardRouter::runRebalance, "rebalance");
+            mover.setDaemon(true);
+            mover.start();
+            Http.sendResponse(exchange, 202, shardsJSON());
+        } else if ("GET".equals(method)) {
+            Http.sendResponse(exchange, 200, shardsJSON());
+        } else {
+            Http.sendResponse(exchange, 405, "{\"error\":\"Method not allowed\"}");
+        }
+    }
+    
+    private static String shardsJSON() {
+        Topology current = topology;
+        StringBuilder json = new StringBuilder("{\"shards\":[");
+        List<String> shards = current.ring.shards;
+        for (int i = 0; i < shards.size(); i++) {
+            if (i > 0) json.append(",");
+            json.append("\"").append(Http.escapeJSON(shards.get(i))).append("\"");
+        }
+        json.append("],\"down\":[");
+        int count = 0;
+        for (String shard : shards) {
+            if (downShards.contains(shard)) {
+                if (count++ > 0) json.append(",");
+                json.append("\"").append(Http.escapeJSON(shard)).append("\"");
+            }
+        }
+        Rebalance rebalance = current.rebalance;
+        json.append("],\"rebalancing\":").append(rebalance != null);
+        if (rebalance != null) {
+            json.append(",\"target\":\"").append(Http.escapeJSON(rebalance.target))
+                .append("\",\"moved\":").append(rebalance.moved.get())
+                .append(",\"attempts\":").append(rebalance.attempts);
+            String failure = rebalance.failure;
+            if (failure != null) {
+                json.append(",\"error\":\"").append(Http.escapeJSON(failure)).append("\"");
+            }
+        }
+        return json.append("}").toString();
+    }
+    
+    /**
+     * Går gjennom de gamle shardene og flytter id-ene som nå eies av den nye.
+     * Feiler en runde, prøves hele gjennomgangen på nytt etter en pause; id-er
+     * som allerede er flyttet, hoppes over.
+     */
+    private static void runRebalance() {
+        Rebalance current = topology.rebalance;
+        long start = System.currentTimeMillis();
+        long backoff = 1000;
+        while (true) {
+            current.attempts++;
+            try {
+                for (String shard : current.previous.shards) {
+                    ShardResponse listing = send(shard, "GET", "/api/students", new byte[0], null);
+                    if (listing.status != 200) {
+                        throw new IOException("Shard " + shard + " svarte " + listing.status);
+                    }
+                    for (String element : splitObjects(listing.text())) {
+                        int studentId = studentId(element);
+                        if (current.pending(studentId)) {
+                            moveStudent(current, studentId);
+                        }
+                    }
+                }
+                synchronized (StudentShardRouter.class) {
+                    topology = new Topology(current.next, null);
+                }
+                System.out.println("Flyttet " + current.moved.get() + " studenter til " + current.target
+                    + " på " + (System.currentTimeMillis() - start) + " ms");
+                return;
+            } catch (IOException | RuntimeException e) {
+                // Id-ene som gjenstår flyttes også ved første forespørsel i mellomtiden
+                current.failure = e.getMessage();
+                System.err.println("Flytting til " + current.target + " feilet, prøver igjen om "
+                    + backoff + " ms: " + e.getMessage());
+            }
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                return;
+            }
+            backoff = Math.min(backoff * 2, MAX_REBALANCE_BACKOFF_MILLIS);
+        }
+    }
+    
+    /**
+     * Flytter én student fra forrige eier til den nye sharden: opprett der,
+     * slett hos forrige. Holder skrivelåsen for id-en, så ingen forespørsel
+     * for samme id går til noen av dem underveis. Id-en regnes som flyttet
+     * først når slettingen hos forrige eier er bekreftet.
+     */
+    private static void moveStudent(Rebalance current, int studentId) throws IOException {
+        ReadWriteLock lock = keyLock(studentId);
+        lock.writeLock().lock();
+        listingLock.readLock().lock();
+        try {
+            if (current.done.contains(studentId)) {
+                return;
+            }
+            String from = current.previous.owner(studentId);
+            ShardResponse existing = send(from, "GET", "/api/students/" + studentId, new byte[0], null);
+            if (existing.status == 200) {
+                String path = "/api/students/" + studentId;
+                ShardResponse created = send(current.target, "PUT", path, existing.body, "*");
+                if (created.status == 412) {
+                    // Allerede opprettet hos målet (flyttingen ble avbrutt før sletting), men
+                    // forrige eier kan ha fått nyere endringer siden; de skal gjelde
+                    created = send(current.target, "PUT", path, existing.body, null);
+                }
+                if (created.status != 201 && created.status != 200) {
+                    throw new IOException("Kunne ikke opprette " + studentId + " på " + current.target
+                        + " (" + created.status + ")");
+                }
+                ShardResponse deleted = send(from, "DELETE", path, new byte[0], null);
+                if (deleted.status != 204 && deleted.status != 404) {
+                    throw new IOException("Kunne ikke slette " + studentId + " på " + from
+                        + " (" + deleted.status + ")");
+                }
+                current.moved.incrementAndGet();
+            }
+            current.done.add(studentId);
+        } finally {
+            listingLock.readLock().unlock();
+            lock.writeLock().unlock();
+        }
+    }
+    
+    private static ReadWriteLock keyLock(int studentId) {
+        return keyLocks[(int) (HashRing.mix(studentId) & (keyLocks.length - 1))];
+    }
+    
+    // ==================== Kommunikasjon med shards ====================
+    
+    private static ShardResponse send(String shard, String method, String path, byte[] body, String ifNoneMatch)
+            throws IOException {
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(shard + path))
+            .timeout(SHARD_TIMEOUT)
+            .method(method, body.length == 0 && !"PUT".equals(method) && !"POST".equals(method)
+                ? HttpRequest.BodyPublishers.noBody()
+                : HttpRequest.BodyPublishers.ofByteArray(body));
+        if (body.length > 0) {
+            request.header("Content-Type", "application/json");
+        }
+        if (ifNoneMatch != null) {
+            request.header("If-None-Match", ifNoneMatch);
+        }
+        try {
+            ShardResponse response = new ShardResponse(
+                client.send(request.build(), HttpResponse.BodyHandlers.ofByteArray()));
+            downShards.remove(shard);
+            return response;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Avbrutt");
+        } catch (IOException e) {
+            downShards.add(shard);
+            throw new IOException("Shard " + shard + " svarer ikke", e);
+        }
+    }
+    
+    /** Høyeste student-id på én shard (0 hvis den er tom). */
+    private static int maxStudentId(String shard) throws IOException {
+        ShardResponse listing = send(shard, "GET", "/api/students", new byte[0], null);
+        if (listing.status != 200) {
+            throw new IOException("Shard " + shard + " svarte " + listing.status);
+        }
+        int maxId = 0;
+        for (String element : splitObjects(listing.text())) {
+            maxId = Math.max(maxId, studentId(element));
+        }
+        return maxId;
+    }
+    
+    /** Samme GET mot alle shards samtidig. Feiler hvis en av dem ikke svarer med 200. */
+    private static List<ShardResponse> scatter(String pathAndQuery) throws IOException {
+        List<String> shards = topology.ring.shards;
+        List<CompletableFuture<HttpResponse<byte[]>>> futures = new ArrayList<>();
+        for (String shard : shards) {
+            HttpRequest request = HttpRequest.newBuilder(URI.create(shard + pathAndQuery))
+                .timeout(SHARD_TIMEOUT)
+                .GET()
+                .build();
+            futures.add(client.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray()));
+        }
+        List<ShardResponse> responses = new ArrayList<>();
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                ShardResponse response = new ShardResponse(futures.get(i).join());
+                downShards.remove(shards.get(i));
+                if (response.status != 200) {
+                    throw new IOException("Shard " + shards.get(i) + " svarte " + response.status);
+                }
+                responses.add(response);
+            } catch (RuntimeException e) {
+                downShards.add(shards.get(i));
+                throw new IOException("Shard " + shards.get(i) + " svarer ikke", e);
+            }
+        }
+        return responses;
+    }
+    
+    /**
+     * Henter en liste fra alle shards og slår dem sammen sortert på id. Under
+     * flytting holdes listingLock, så ingen student er halvveis flyttet (og
+     * dermed mangler eller finnes to ganger) mens listene hentes.
+     */
+    private static SortedMap<Integer, String> gatherArrays(String pathAndQuery) throws IOException {
+        boolean locked = topology.rebalance != null;
+        if (locked) {
+            listingLock.writeLock().lock();
+        }
+        try {
+            SortedMap<Integer, String> merged = new TreeMap<>();
+            for (ShardResponse response : scatter(pathAndQuery)) {
+                for (String element : splitObjects(response.text())) {
+                    merged.put(studentId(element), element);
+                }
+            }
+            return merged;
+        } finally {
+            if (locked) {
+                listingLock.writeLock().unlock();
+            }
+        }
+    }
+    
+    private static void relay(HttpExchange exchange, ShardResponse response) throws IOException {
+        if (response.retryAfter != null) {
+            exchange.getResponseHeaders().set("Retry-After", response.retryAfter);
+        }
+        Http.sendResponse(exchange, response.status, response.body);
+    }
+    
+    /** Leser hele request-kroppen, eller null hvis den er større enn grensen. */
+    private static byte[] readBody(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            byte[] body = in.readNBytes(MAX_BODY_BYTES + 1);
+            return body.length > MAX_BODY_BYTES ? null : body;
+        }
+    }
+    
+    private static String normalizeUrl(String url) {
+        return url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+    }
+    
+    // ==================== JSON fra shardene ====================
+    
+    /** Deler en JSON-liste med flate objekter i objektene, uten å tolke strengene. */
+    static List<String> splitObjects(String array) {
+        List<String> objects = new ArrayList<>();
+        int depth = 0;
+        int start = -1;
+        boolean inString = false;
+        for (int i = 0; i < array.length(); i++) {
+            char c = array.charAt(i);
+            if (inString) {
+                if (c == '\\') {
+                    i++;
+                } else if (c == '"') {
+                    inString = false;
+                }
+            } else if (c == '"') {
+                inString = true;
+            } else if (c == '{') {
+                if (depth++ == 0) {
+                    start = i;
+                }
+            } else if (c == '}') {
+                if (--depth == 0) {
+                    objects.add(array.substring(start, i + 1));
+                }
+            }
+        }
+        return objects;
+    }
+    
+    /** Student.toJSON() begynner alltid med {"id":<tall>, */
+    static int studentId(String studentJson) {
+        int start = studentJson.indexOf(':') + 1;
+        int end = studentJson.indexOf(',', start);
+        return Integer.parseInt(studentJson.substring(start, end).trim());
+    }
+    
+    /** Legger tellingene i {"program":antall,...} til totals. Nøklene beholdes escapet. */
+    static void parseCounts(String object, Map<String, Integer> totals) {
+        int i = object.indexOf('{') + 1;
+        while (true) {
+            int keyStart = object.indexOf('"', i);
+            if (keyStart < 0) {
+                return;
+            }
+            int keyEnd = keyStart + 1;
+            while (object.charAt(keyEnd) != '"') {
+                keyEnd += object.charAt(keyEnd) == '\\' ? 2 : 1;
+            }
+            int colon = object.indexOf(':', keyEnd);
+            int valueEnd = colon + 1;
+            while (valueEnd < object.length() && object.charAt(valueEnd) != ',' && object.charAt(valueEnd) != '}') {
+                valueEnd++;
+            }
+            totals.merge(object.substring(keyStart, keyEnd + 1),
+                Integer.parseInt(object.substring(colon + 1, valueEnd).trim()), Integer::sum);
+            i = valueEnd + 1;
+        }
+    }
+}
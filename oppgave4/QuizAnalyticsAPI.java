@@ -1,10 +1,27 @@
 import com.sun.net.httpserver.*;
 import java.io.*;
-import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
 
 /**
  * Oppgave 4: CRUD-API med DELETE og Quiz-analyse
@@ -14,7 +31,58 @@ import java.util.stream.Collectors;
  * - Analyse-endepunkt som beregner statistikk fra quiz-resultater
  * 
  * Bruk:
+ *   javac -sourcepath ../felles -d . QuizAnalyticsAPI.java
  *   java QuizAnalyticsAPI <port> <students-csv> <quiz-results-csv>
+ *   java QuizAnalyticsAPI --convert <students-inn> <quiz-inn> <students-ut> <quiz-ut>
+ * 
+ * Filer som slutter på .bin leses og skrives i et kompakt binært format
+ * (header med antall poster og CRC32, deretter postene). De leses med én
+ * FileChannel-lesing, så oppstart slipper readAllLines og split. Med --convert
+ * kan tabellene konverteres mellom CSV og binært format. Studenttabellen og
+ * fillagringen er den felles lagringsmotoren i ../felles (Table og TableStore).
+ * 
+ * Den fulle skanningen av quiz-resultatene ved oppstart kan kjøres
+ * parallelt: -Danalytics.mode=parallel, med
+ * -Danalytics.parallelism=<tråder> og -Danalytics.chunk=<rader per bit>.
+ * 
+ * DELETE er en myk sletting: studenten får en gravstein (lagret i
+ * <students-csv>.tombstones) og filtreres bort fra alle svar med en gang.
+ * En bakgrunnstråd fjerner radene fysisk og skriver filene på nytt hvert
+ * -Dcompaction.interval=<sekunder> (standard 10), og ved avslutning.
+ * 
+ * POST /api/quiz-results tar imot ett resultat eller en NDJSON-batch.
+ * Resultatene får et sekvensnummer og skrives til <quiz-csv>.log.<n> (fsync)
+ * av én skrivetråd som samler opp ventende batcher, og legges så rett inn i
+ * statistikken. Komprimeringen skriver dem over i quiz-filen sammen med det
+ * siste sekvensnummeret den dekker, så avspilling ved oppstart hopper over
+ * poster som allerede er med, selv om segmentene ikke ble slettet. Er køen full
+ * (-Dingest.queue=<batcher>, standard 256) svarer serveren 503 med
+ * Retry-After i stedet for å la forespørslene hope seg opp.
+ * 
+ * Feiler skrivingen til loggen, kuttes segmentet tilbake til der batchen
+ * begynte og klienten får 500; batchen er da ikke lagret. Kan segmentet ikke
+ * kuttes, avvises all innsending (500) til neste komprimering har rotert til
+ * et nytt segment, og 500 for den batchen betyr "kanskje lagret": krasjer
+ * serveren før komprimeringen, kan den bli lest inn ved oppstart.
+ * 
+ * Eksempel:
+ *   curl -X POST http://localhost:8003/api/quiz-results \
+ *        -d '{"quiz_id":4,"student_id":101,"score":88,"max_score":100}'
+ * 
+ * Topplister per quiz holdes sortert ved hver innsetting og sletting, så
+ * /api/analytics/leaderboard/{quizId}?k=10 bare leser de k første:
+ *   curl "http://localhost:8003/api/analytics/leaderboard/1?k=3"
+ * 
+ * /api/analytics/program-stats er en materialisert join av students og
+ * quiz-resultatene per studieprogram, bygget med én hash-join ved oppstart
+ * og deretter oppdatert ved hver sletting og innsending. Med ?verify=true
+ * sammenlignes den med en full ny join; summene er heltall (mikroprosent), så
+ * de skal være nøyaktig like:
+ *   curl "http://localhost:8003/api/analytics/program-stats?verify=true"
+ * 
+ * Alle analytics-svar caches ferdig serialisert mot en global dataversjon
+ * som økes ved hver endring. Flere like forespørsler rett etter en endring
+ * venter på én felles beregning i stedet for å gjøre den hver for seg.
  * 
  * Eksempel:
  *   java QuizAnalyticsAPI 8003 studenter.csv quiz-res.csv
@@ -22,47 +90,134 @@ import java.util.stream.Collectors;
  * Test:
  *   curl http://localhost:8003/api/analytics/quiz-stats
  *   curl http://localhost:8003/api/analytics/student-stats/101
+ *   curl http://localhost:8003/api/analytics/quiz-distribution/1
  *   curl -X DELETE http://localhost:8003/api/students/101
  */
 public class QuizAnalyticsAPI {
     
-    private static Map<Integer, Student> students = new HashMap<>();
-    private static List<QuizResult> quizResults = new ArrayList<>();
+    private static Table<Integer, Student> students = new Table<>(Student.SCHEMA, student -> student.id);
+    // Kolonnelagring: fire int-tabeller i stedet for ett objekt per resultat
+    private static ResultColumns quizResults = new ResultColumns();
+    // Løpende statistikk per quiz, sortert på quizId. Oppdateres ved hver innsetting og sletting.
+    private static TreeMap<Integer, QuizAggregate> quizAggregates = new TreeMap<>();
+    // Indeks studentId -> studentens resultater, med løpende sum av prosentene
+    private static Map<Integer, StudentResults> resultsByStudent = new HashMap<>();
+    private static AnalyticsEngine analytics;
+    // Sortert toppliste per quiz, vedlikeholdt sammen med aggregatene
+    private static Map<Integer, Leaderboard> leaderboards = new HashMap<>();
+    private static final int MAX_LEADERBOARD_K = 1000;
+    // Materialisert join students x quizResults per studieprogram
+    private static TreeMap<String, ProgramAggregate> programStats = new TreeMap<>();
+    
+    // Myk sletting: id-er som er slettet, men ennå ikke fjernet fysisk av komprimeringen
+    private static Set<Integer> tombstones = ConcurrentHashMap.newKeySet();
+    private static final long COMPACTION_INTERVAL_SECONDS = Long.getLong("compaction.interval", 10);
+    
+    // Lesere tar read-lock; DELETE, innsending og komprimering tar write-lock
+    private static final ReentrantReadWriteLock dataLock = new ReentrantReadWriteLock();
+    // Økes under write-lock ved hver endring som kan gi andre svar
+    private static volatile long dataVersion;
+    private static final ResponseCache responseCache = new ResponseCache(4096);
+    
+    // Innsending: begrenset kø foran én skrivetråd, som gir mottrykk når disken ikke henger med
+    private static final int MAX_INGEST_BODY_BYTES = 1024 * 1024;
+    private static final BlockingQueue<IngestBatch> ingestQueue =
+        new ArrayBlockingQueue<>(Integer.getInteger("ingest.queue", 256));
+    // Holdes av skrivetråden og komprimeringen, alltid før dataLock
+    private static final Object ingestLock = new Object();
+    private static FileChannel ingestLog;
+    private static int ingestSegment;
+    // Innsendte resultater som ennå ikke er skrevet over i quiz-filen
+    private static int ingestLogRecords;
+    // Siste sekvensnummer gitt til en innsendt post, og det siste som er med i quiz-filen ved oppstart
+    private static long ingestSeq;
+    private static long savedIngestSeq;
+    // Satt når en feilet batch ikke kunne kuttes bort fra segmentet; nullstilles ved rotering
+    private static boolean ingestLogFailed;
+    
+    // Én komprimering om gangen (bakgrunnstråden og avslutningen)
+    private static final Object compactionLock = new Object();
+    // Satt fra radene er fjernet i minnet til filene er skrevet, så en feilet lagring prøves igjen
+    private static boolean compactionPending;
     private static String studentsCsvPath;
     private static String quizCsvPath;
     
-    static class Student {
-        int id;
-        String name;
-        String program;
+    // Magic for quiz-resultater i det felles binærformatet (se TableStore)
+    private static final int QUIZ_RESULT_MAGIC = 0x51525331; // "QRS1"
+    // Linje etter headeren i quiz-CSV-en med siste innsendte sekvensnummer filen inneholder
+    private static final String INGEST_SEQ_PREFIX = "# ingest_seq=";
+    
+    /**
+     * Quiz-resultater lagret kolonnevis i voksende int-tabeller (quizId, studentId,
+     * score, maxScore). Det gir 16 bytes per rad uten objekt-header og referanse,
+     * og analysene blir enkle løkker over primitive tabeller.
+     * 
+     * Sletting flytter siste rad inn i hullet, så radnumre er ikke stabile.
+     */
+    static class ResultColumns {
+        int[] quizId = new int[16];
+        int[] studentId = new int[16];
+        int[] score = new int[16];
+        int[] maxScore = new int[16];
+        int size;
+        // Rader som tilhører slettede studenter, men ennå ikke er fjernet fysisk
+        final BitSet deleted = new BitSet();
+        int deletedCount;
         
-        Student(int id, String name, String program) {
-            this.id = id;
-            this.name = name;
-            this.program = program;
+        int add(int quiz, int student, int points, int maxPoints) {
+            if (size == quizId.length) {
+                int capacity = size * 2;
+                quizId = Arrays.copyOf(quizId, capacity);
+                studentId = Arrays.copyOf(studentId, capacity);
+                score = Arrays.copyOf(score, capacity);
+                maxScore = Arrays.copyOf(maxScore, capacity);
+            }
+            quizId[size] = quiz;
+            studentId[size] = student;
+            score[size] = points;
+            maxScore[size] = maxPoints;
+            return size++;
         }
         
-        String toJSON() {
-            return String.format("{\"id\":%d,\"name\":\"%s\",\"program\":\"%s\"}", 
-                id, escapeJSON(name), escapeJSON(program));
+        void markDeleted(int row) {
+            if (!deleted.get(row)) {
+                deleted.set(row);
+                deletedCount++;
+            }
         }
-    }
-    
-    static class QuizResult {
-        int quizId;
-        int studentId;
-        int score;
-        int maxScore;
         
-        QuizResult(int quizId, int studentId, int score, int maxScore) {
-            this.quizId = quizId;
-            this.studentId = studentId;
-            this.score = score;
-            this.maxScore = maxScore;
+        /** Fjerner raden ved å flytte siste rad inn i hullet. Returnerer flyttet rads gamle nummer, eller -1. */
+        int removeRow(int row) {
+            if (deleted.get(row)) {
+                deletedCount--;
+            }
+            int last = --size;
+            if (row == last) {
+                deleted.clear(row);
+                return -1;
+            }
+            quizId[row] = quizId[last];
+            studentId[row] = studentId[last];
+            score[row] = score[last];
+            maxScore[row] = maxScore[last];
+            deleted.set(row, deleted.get(last));
+            deleted.clear(last);
+            return last;
+        }
+        
+        double percentage(int row) {
+            return (double) score[row] / maxScore[row] * 100;
         }
         
-        double getPercentage() {
-            return (double) score / maxScore * 100;
+        /** Kopi av radene, til lagring utenfor låsen. Slettemerkene kopieres ikke. */
+        ResultColumns copy() {
+            ResultColumns copy = new ResultColumns();
+            copy.quizId = Arrays.copyOf(quizId, size);
+            copy.studentId = Arrays.copyOf(studentId, size);
+            copy.score = Arrays.copyOf(score, size);
+            copy.maxScore = Arrays.copyOf(maxScore, size);
+            copy.size = size;
+            return copy;
         }
     }
     
@@ -83,9 +238,703 @@ public class QuizAnalyticsAPI {
         }
     }
     
+    /** Antall histogram-bøtter over prosent (1 prosentpoeng per bøtte; 100 % havner i siste). */
+    static final int HISTOGRAM_BUCKETS = 100;
+    
+    static int bucketOf(int score, int maxScore) {
+        int bucket = (int) ((double) score / maxScore * 100);
+        return Math.max(0, Math.min(HISTOGRAM_BUCKETS - 1, bucket));
+    }
+    
+    /**
+     * Antall rader per score for én quiz, som to sorterte tabeller. En quiz har få
+     * ulike scorer (høyst maxScore + 1), så oppdatering er et binærsøk, og min/max
+     * er første og siste element - også rett etter at raden med min eller max er
+     * slettet, uten å skanne radene på nytt.
+     */
+    static class ScoreCounts {
+        int[] scores = new int[8];
+        int[] counts = new int[8];
+        int size;
+        
+        void add(int score, int n) {
+            int i = Arrays.binarySearch(scores, 0, size, score);
+            if (i >= 0) {
+                counts[i] += n;
+                return;
+            }
+            i = -i - 1;
+            if (size == scores.length) {
+                scores = Arrays.copyOf(scores, size * 2);
+                counts = Arrays.copyOf(counts, size * 2);
+            }
+            System.arraycopy(scores, i, scores, i + 1, size - i);
+            System.arraycopy(counts, i, counts, i + 1, size - i);
+            scores[i] = score;
+            counts[i] = n;
+            size++;
+        }
+        
+        void remove(int score) {
+            int i = Arrays.binarySearch(scores, 0, size, score);
+            if (i < 0) return;
+            if (--counts[i] == 0) {
+                System.arraycopy(scores, i + 1, scores, i, size - i - 1);
+                System.arraycopy(counts, i + 1, counts, i, size - i - 1);
+                size--;
+            }
+        }
+        
+        void merge(ScoreCounts other) {
+            for (int i = 0; i < other.size; i++) {
+                add(other.scores[i], other.counts[i]);
+            }
+        }
+        
+        int min() {
+            return scores[0];
+        }
+        
+        int max() {
+            return scores[size - 1];
+        }
+    }
+    
+    /**
+     * Aggregat for én quiz: antall, gjennomsnitt og M2 (Welfords metode), antall
+     * per score (for min og max) og et histogram over prosent. Brukes både som
+     * løpende aggregat og som delaggregat i parallelle skanninger, og kan slås
+     * sammen med merge().
+     */
+    static class QuizAggregate {
+        final int quizId;
+        int count;
+        double mean;
+        double m2;
+        final ScoreCounts scores = new ScoreCounts();
+        final int[] histogram = new int[HISTOGRAM_BUCKETS];
+        
+        QuizAggregate(int quizId) {
+            this.quizId = quizId;
+        }
+        
+        void add(int score, int maxScore) {
+            count++;
+            double delta = score - mean;
+            mean += delta / count;
+            m2 += delta * (score - mean);
+            scores.add(score, 1);
+            histogram[bucketOf(score, maxScore)]++;
+        }
+        
+        void remove(int score, int maxScore) {
+            histogram[bucketOf(score, maxScore)]--;
+            scores.remove(score);
+            if (count <= 1) {
+                count = 0;
+                mean = 0;
+                m2 = 0;
+                return;
+            }
+            double oldMean = mean;
+            count--;
+            mean = (oldMean * (count + 1) - score) / count;
+            m2 -= (score - oldMean) * (score - mean);
+        }
+        
+        /** Slår sammen to delaggregater (Chan et al. for snitt og M2). */
+        void merge(QuizAggregate other) {
+            if (other.count == 0) return;
+            int total = count + other.count;
+            double delta = other.mean - mean;
+            mean += delta * other.count / total;
+            m2 += other.m2 + delta * delta * count * other.count / total;
+            count = total;
+            scores.merge(other.scores);
+            for (int b = 0; b < HISTOGRAM_BUCKETS; b++) {
+                histogram[b] += other.histogram[b];
+            }
+        }
+        
+        /**
+         * Anslår persentilen (0-100) av prosentscoren ut fra histogrammet, med lineær
+         * interpolasjon innenfor bøtta. Koster O(antall bøtter), uavhengig av antall rader.
+         */
+        double percentile(double p) {
+            if (count == 0) return 0;
+            double rank = p / 100 * count;
+            long cumulative = 0;
+            for (int b = 0; b < HISTOGRAM_BUCKETS; b++) {
+                int inBucket = histogram[b];
+                if (inBucket > 0 && cumulative + inBucket >= rank) {
+                    double width = 100.0 / HISTOGRAM_BUCKETS;
+                    return b * width + width * (rank - cumulative) / inBucket;
+                }
+                cumulative += inBucket;
+            }
+            return 100;
+        }
+        
+        QuizStats toStats() {
+            QuizStats stats = new QuizStats();
+            stats.quizId = quizId;
+            stats.participantCount = count;
+            if (count > 0) {
+                stats.averageScore = mean;
+                stats.standardDeviation = Math.sqrt(Math.max(0, m2 / count));
+                stats.minScore = scores.min();
+                stats.maxScore = scores.max();
+            }
+            return stats;
+        }
+    }
+    
+    /**
+     * Motor for fulle skanninger av resultatkolonnene.
+     * 
+     * I parallell modus deles radene i biter som skannes på en egen ForkJoinPool,
+     * slik at HTTP-trådene aldri brukes til dette. Hver bit gir ett delaggregat per
+     * quiz, og delaggregatene slås sammen oppover i treet.
+     */
+    static class AnalyticsEngine {
+        private static final int MAX_DENSE_QUIZ_RANGE = 1024;
+        
+        final boolean parallel;
+        final int parallelism;
+        final int chunkSize;
+        private final ForkJoinPool pool;
+        
+        AnalyticsEngine(boolean parallel, int parallelism, int chunkSize) {
+            this.parallel = parallel;
+            this.parallelism = parallelism;
+            this.chunkSize = chunkSize;
+            this.pool = parallel ? new ForkJoinPool(parallelism, pool -> {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                thread.setName("analytics-" + thread.getPoolIndex());
+                return thread;
+            }, null, false) : null;
+        }
+        
+        static AnalyticsEngine fromSystemProperties() {
+            boolean parallel = "parallel".equals(System.getProperty("analytics.mode", "sequential"));
+            int parallelism = Integer.getInteger("analytics.parallelism", Runtime.getRuntime().availableProcessors());
+            int chunkSize = Integer.getInteger("analytics.chunk", 1 << 16);
+            return new AnalyticsEngine(parallel, parallelism, chunkSize);
+        }
+        
+        TreeMap<Integer, QuizAggregate> aggregate(ResultColumns columns) {
+            TreeMap<Integer, QuizAggregate> result = new TreeMap<>();
+            if (columns.size == 0) return result;
+            
+            JfrEvents.Analytics event = JfrEvents.Analytics.start("quiz-aggregates");
+            QuizSlots slots = new QuizSlots(columns);
+            boolean split = parallel && columns.size > chunkSize;
+            QuizAggregate[] partials = split
+                ? pool.invoke(new ChunkTask(this, columns, slots, 0, columns.size))
+                : scanChunk(columns, slots, 0, columns.size);
+            
+            for (QuizAggregate aggregate : partials) {
+                if (aggregate != null && aggregate.count > 0) {
+                    result.put(aggregate.quizId, aggregate);
+                }
+            }
+            event.finish(columns.size, split);
+            return result;
+        }
+        
+        /** Skanner radene [from, to) med enkle løkker over primitive tabeller. */
+        static QuizAggregate[] scanChunk(ResultColumns columns, QuizSlots slots, int from, int to) {
+            int quizzes = slots.slotToQuiz.length;
+            int[] count = new int[quizzes];
+            long[] sum = new long[quizzes];
+            ScoreCounts[] scores = new ScoreCounts[quizzes];
+            int[] histogram = new int[quizzes * HISTOGRAM_BUCKETS];
+            for (int q = 0; q < quizzes; q++) {
+                scores[q] = new ScoreCounts();
+            }
+            
+            int[] score = columns.score;
+            int[] maxScore = columns.maxScore;
+            BitSet deleted = columns.deletedCount > 0 ? columns.deleted : null;
+            for (int i = from; i < to; i++) {
+                if (deleted != null && deleted.get(i)) continue;
+                int q = slots.slotOf(i);
+                int s = score[i];
+                count[q]++;
+                sum[q] += s;
+                scores[q].add(s, 1);
+                histogram[q * HISTOGRAM_BUCKETS + bucketOf(s, maxScore[i])]++;
+            }
+            
+            double[] mean = new double[quizzes];
+            for (int q = 0; q < quizzes; q++) {
+                mean[q] = count[q] == 0 ? 0 : (double) sum[q] / count[q];
+            }
+            double[] m2 = new double[quizzes];
+            for (int i = from; i < to; i++) {
+                if (deleted != null && deleted.get(i)) continue;
+                int q = slots.slotOf(i);
+                double d = score[i] - mean[q];
+                m2[q] += d * d;
+            }
+            
+            QuizAggregate[] partials = new QuizAggregate[quizzes];
+            for (int q = 0; q < quizzes; q++) {
+                if (count[q] == 0) continue;
+                QuizAggregate aggregate = new QuizAggregate(slots.slotToQuiz[q]);
+                aggregate.count = count[q];
+                aggregate.mean = mean[q];
+                aggregate.m2 = m2[q];
+                aggregate.scores.merge(scores[q]);
+                System.arraycopy(histogram, q * HISTOGRAM_BUCKETS, aggregate.histogram, 0, HISTOGRAM_BUCKETS);
+                partials[q] = aggregate;
+            }
+            return partials;
+        }
+        
+        static QuizAggregate[] mergePartials(QuizAggregate[] left, QuizAggregate[] right) {
+            for (int q = 0; q < left.length; q++) {
+                if (left[q] == null) {
+                    left[q] = right[q];
+                } else if (right[q] != null) {
+                    left[q].merge(right[q]);
+                }
+            }
+            return left;
+        }
+    }
+    
+    /**
+     * Gir hver quiz et tett slot-nummer for skanningen: direkte (quizId - lo) når
+     * quizId-ene ligger tett, ellers via en forhåndsberegnet tabell per rad.
+     */
+    static class QuizSlots {
+        final int lo;
+        final int[] quizIds;
+        final int[] rowSlots;
+        final int[] slotToQuiz;
+        
+        QuizSlots(ResultColumns columns) {
+            int n = columns.size;
+            quizIds = columns.quizId;
+            int low = Integer.MAX_VALUE;
+            int high = Integer.MIN_VALUE;
+            for (int i = 0; i < n; i++) {
+                low = Math.min(low, quizIds[i]);
+                high = Math.max(high, quizIds[i]);
+            }
+            lo = low;
+            
+            if ((long) high - low < AnalyticsEngine.MAX_DENSE_QUIZ_RANGE) {
+                rowSlots = null;
+                slotToQuiz = new int[high - low + 1];
+                for (int q = 0; q < slotToQuiz.length; q++) slotToQuiz[q] = low + q;
+            } else {
+                Map<Integer, Integer> slotOf = new HashMap<>();
+                rowSlots = new int[n];
+                for (int i = 0; i < n; i++) {
+                    rowSlots[i] = slotOf.computeIfAbsent(quizIds[i], q -> slotOf.size());
+                }
+                slotToQuiz = new int[slotOf.size()];
+                for (Map.Entry<Integer, Integer> e : slotOf.entrySet()) slotToQuiz[e.getValue()] = e.getKey();
+            }
+        }
+        
+        int slotOf(int row) {
+            return rowSlots == null ? quizIds[row] - lo : rowSlots[row];
+        }
+    }
+    
+    static class ChunkTask extends RecursiveTask<QuizAggregate[]> {
+        private static final long serialVersionUID = 1L;
+        
+        private final AnalyticsEngine engine;
+        private final ResultColumns columns;
+        private final QuizSlots slots;
+        private final int from;
+        private final int to;
+        
+        ChunkTask(AnalyticsEngine engine, ResultColumns columns, QuizSlots slots, int from, int to) {
+            this.engine = engine;
+            this.columns = columns;
+            this.slots = slots;
+            this.from = from;
+            this.to = to;
+        }
+        
+        @Override
+        protected QuizAggregate[] compute() {
+            if (to - from <= engine.chunkSize) {
+                return AnalyticsEngine.scanChunk(columns, slots, from, to);
+            }
+            int mid = (from + to) >>> 1;
+            ChunkTask left = new ChunkTask(engine, columns, slots, from, mid);
+            left.fork();
+            QuizAggregate[] right = new ChunkTask(engine, columns, slots, mid, to).compute();
+            return AnalyticsEngine.mergePartials(left.join(), right);
+        }
+    }
+    
+    /** Radnumrene til én students resultater, med løpende sum for gjennomsnittet. */
+    static class StudentResults {
+        int[] rows = new int[4];
+        int count;
+        double percentageSum;
+        
+        void add(int row, double percentage) {
+            if (count == rows.length) {
+                rows = Arrays.copyOf(rows, count * 2);
+            }
+            rows[count++] = row;
+            percentageSum += percentage;
+        }
+        
+        void replaceRow(int oldRow, int newRow) {
+            for (int i = 0; i < count; i++) {
+                if (rows[i] == oldRow) {
+                    rows[i] = newRow;
+                    return;
+                }
+            }
+        }
+        
+        double averagePercentage() {
+            return count == 0 ? 0 : percentageSum / count;
+        }
+    }
+    
+    /** Et ferdig serialisert svar og dataversjonen det ble beregnet fra. */
+    static class CachedResponse {
+        final int status;
+        final byte[] body;
+        long version;
+        
+        CachedResponse(int status, String body) {
+            this.status = status;
+            this.body = body.getBytes(StandardCharsets.UTF_8);
+        }
+    }
+    
+    /**
+     * Cache for analytics-svar, nøklet på endepunkt og parametere. Et svar er
+     * gyldig så lenge dataVersion er uendret. Bare én tråd beregner en gitt
+     * nøkkel om gangen; andre som ber om samme nøkkel venter på resultatet.
+     */
+    static class ResponseCache {
+        private final int maxEntries;
+        private final ConcurrentHashMap<String, CachedResponse> entries = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<String, CompletableFuture<CachedResponse>> inFlight =
+            new ConcurrentHashMap<>();
+        
+        ResponseCache(int maxEntries) {
+            this.maxEntries = maxEntries;
+        }
+        
+        /** Beregner under read-lock, så versjonen som lagres alltid hører til dataene som ble lest. */
+        CachedResponse get(String key, Supplier<CachedResponse> compute) {
+            while (true) {
+                long version = dataVersion;
+                CachedResponse cached = entries.get(key);
+                if (cached != null && cached.version == version) return cached;
+                
+                CompletableFuture<CachedResponse> mine = new CompletableFuture<>();
+                CompletableFuture<CachedResponse> running = inFlight.putIfAbsent(key, mine);
+                if (running != null) {
+                    // Ta bare imot svaret hvis det ikke er eldre enn det vi allerede har sett
+                    CachedResponse shared = running.join();
+                    if (shared.version >= version) return shared;
+                    continue;
+                }
+                
+                try {
+                    CachedResponse response;
+                    dataLock.readLock().lock();
+                    try {
+                        long current = dataVersion;
+                        JfrEvents.Analytics event = JfrEvents.Analytics.start(key);
+                        response = compute.get();
+                        event.finish(0, false);
+                        response.version = current;
+                    } finally {
+                        dataLock.readLock().unlock();
+                    }
+                    if (entries.size() >= maxEntries) {
+                        evict(response.version);
+                    }
+                    entries.put(key, response);
+                    mine.complete(response);
+                    return response;
+                } catch (RuntimeException e) {
+                    mine.completeExceptionally(e);
+                    throw e;
+                } finally {
+                    inFlight.remove(key, mine);
+                }
+            }
+        }
+        
+        /**
+         * Gir plass til ett svar til: fjerner først svar fra eldre dataversjoner, som
+         * aldri blir levert igjen, og ellers ett vilkårlig svar, så resten av cachen
+         * fortsatt treffer.
+         */
+        private void evict(long version) {
+            entries.values().removeIf(cached -> cached.version < version);
+            Iterator<String> keys = entries.keySet().iterator();
+            while (entries.size() >= maxEntries && keys.hasNext()) {
+                keys.next();
+                keys.remove();
+            }
+        }
+    }
+    
+    /**
+     * Join-aggregat for ett studieprogram. Prosentene summeres som heltall
+     * (milliondeler av et prosentpoeng), så summen er eksakt uansett i hvilken
+     * rekkefølge resultater legges til og trekkes fra - den inkrementelle
+     * verdien blir dermed alltid lik en full ny beregning.
+     */
+    static class ProgramAggregate {
+        final String program;
+        int students;
+        int results;
+        long percentageMicros;
+        
+        ProgramAggregate(String program) {
+            this.program = program;
+        }
+        
+        static long toMicros(int score, int maxScore) {
+            return score * 100_000_000L / maxScore;
+        }
+        
+        void addResult(int score, int maxScore) {
+            results++;
+            percentageMicros += toMicros(score, maxScore);
+        }
+        
+        void removeResult(int score, int maxScore) {
+            results--;
+            percentageMicros -= toMicros(score, maxScore);
+        }
+        
+        String toJSON() {
+            double average = results == 0 ? 0 : percentageMicros / 1e6 / results;
+            return String.format(Locale.ROOT,
+                "{\"program\":\"%s\",\"students\":%d,\"results\":%d,\"average_percentage\":%.2f}",
+                Http.escapeJSON(program), students, results, average);
+        }
+    }
+    
+    /**
+     * Ett resultat i en toppliste. Sorteres på prosent (synkende), så studentId.
+     * JSON-fragmentet (med navn fra students) lages én gang ved innsetting.
+     */
+    static class LeaderboardEntry implements Comparable<LeaderboardEntry> {
+        final int studentId;
+        final int score;
+        final int maxScore;
+        final String json;
+        
+        /** Uten json brukes entry bare som nøkkel ved sletting. */
+        LeaderboardEntry(int studentId, int score, int maxScore, String json) {
+            this.studentId = studentId;
+            this.score = score;
+            this.maxScore = maxScore;
+            this.json = json;
+        }
+        
+        @Override
+        public int compareTo(LeaderboardEntry other) {
+            // Kryssmultiplisering gir eksakt sammenligning av score/maxScore
+            int c = Long.compare((long) other.score * maxScore, (long) score * other.maxScore);
+            if (c != 0) return c;
+            c = Integer.compare(studentId, other.studentId);
+            if (c != 0) return c;
+            c = Integer.compare(other.score, score);
+            return c != 0 ? c : Integer.compare(maxScore, other.maxScore);
+        }
+    }
+    
+    /** Alle resultater for én quiz i rangert rekkefølge; like resultater telles i stedet for å lagres flere ganger. */
+    static class Leaderboard {
+        final TreeMap<LeaderboardEntry, Integer> entries = new TreeMap<>();
+        
+        void add(LeaderboardEntry entry) {
+            entries.merge(entry, 1, Integer::sum);
+        }
+        
+        void remove(LeaderboardEntry entry) {
+            entries.computeIfPresent(entry, (e, n) -> n == 1 ? null : n - 1);
+        }
+        
+        boolean isEmpty() {
+            return entries.isEmpty();
+        }
+        
+        /** Leser bare de k første - O(k) uansett hvor mange som har tatt quizen. */
+        String toJSON(int quizId, int k) {
+            StringBuilder json = new StringBuilder(64 + k * 96);
+            json.append("{\"quiz_id\":").append(quizId).append(",\"leaders\":[");
+            int rank = 0;
+            outer:
+            for (Map.Entry<LeaderboardEntry, Integer> e : entries.entrySet()) {
+                for (int i = 0; i < e.getValue(); i++) {
+                    if (rank == k) break outer;
+                    if (rank > 0) json.append(",");
+                    json.append("{\"rank\":").append(++rank).append(",").append(e.getKey().json);
+                }
+            }
+            return json.append("]}").toString();
+        }
+    }
+    
+    /** Resultater fra én POST, fire int per resultat, og svaret som venter på skrivetråden. */
+    static class IngestBatch {
+        final int[] results;
+        final CompletableFuture<Integer> accepted = new CompletableFuture<>();
+        
+        IngestBatch(int[] results) {
+            this.results = results;
+        }
+        
+        int size() {
+            return results.length / 4;
+        }
+    }
+    
+    /**
+     * Leser ett eller flere flate JSON-objekter etter hverandre (NDJSON eller
+     * ett enkelt objekt) rett til int-verdier, uten mellomliggende objekter.
+     */
+    static class QuizResultReader {
+        private final String text;
+        private int pos;
+        
+        QuizResultReader(String text) {
+            this.text = text;
+        }
+        
+        /** Returnerer quiz_id, student_id, score, max_score etter hverandre for hvert resultat. */
+        int[] readAll() {
+            int[] out = new int[16];
+            int n = 0;
+            skipWhitespace();
+            while (pos < text.length()) {
+                if (n + 4 > out.length) out = Arrays.copyOf(out, out.length * 2);
+                readObject(out, n, n / 4 + 1);
+                n += 4;
+                skipWhitespace();
+            }
+            if (n == 0) throw new IllegalArgumentException("No quiz results in request body");
+            return Arrays.copyOf(out, n);
+        }
+        
+        private void readObject(int[] out, int offset, int index) {
+            expect('{', index);
+            long quizId = -1, studentId = -1, score = -1, maxScore = -1;
+            skipWhitespace();
+            if (peek() == '}') {
+                pos++;
+            } else {
+                while (true) {
+                    String key = readString(index);
+                    skipWhitespace();
+                    expect(':', index);
+                    skipWhitespace();
+                    switch (key) {
+                        case "quiz_id": quizId = readInt(key, index); break;
+                        case "student_id": studentId = readInt(key, index); break;
+                        case "score": score = readInt(key, index); break;
+                        case "max_score": maxScore = readInt(key, index); break;
+                        default: skipValue(index);
+                    }
+                    skipWhitespace();
+                    char c = peek();
+                    pos++;
+                    if (c == '}') break;
+                    if (c != ',') throw error("Expected ',' or '}'", index);
+                    skipWhitespace();
+                }
+            }
+            if (quizId < 0 || studentId < 0 || score < 0 || maxScore < 0) {
+                throw error("Missing required fields: quiz_id, student_id, score, max_score", index);
+            }
+            if (maxScore == 0 || score > maxScore) {
+                throw error("score must be between 0 and max_score, and max_score must be positive", index);
+            }
+            out[offset] = (int) quizId;
+            out[offset + 1] = (int) studentId;
+            out[offset + 2] = (int) score;
+            out[offset + 3] = (int) maxScore;
+        }
+        
+        private long readInt(String key, int index) {
+            int start = pos;
+            while (pos < text.length() && Character.isDigit(text.charAt(pos))) pos++;
+            if (pos == start || pos - start > 9) {
+                throw error(key + " must be a non-negative integer", index);
+            }
+            return Long.parseLong(text.substring(start, pos));
+        }
+        
+        private String readString(int index) {
+            expect('"', index);
+            StringBuilder sb = new StringBuilder();
+            while (pos < text.length()) {
+                char c = text.charAt(pos++);
+                if (c == '"') return sb.toString();
+                if (c == '\\' && pos < text.length()) c = text.charAt(pos++);
+                sb.append(c);
+            }
+            throw error("Unterminated string", index);
+        }
+        
+        /** Hopper over verdier for ukjente felt; nøstede verdier støttes ikke. */
+        private void skipValue(int index) {
+            char c = peek();
+            if (c == '"') {
+                readString(index);
+                return;
+            }
+            int start = pos;
+            while (pos < text.length() && "-+.eE0123456789truefalsn".indexOf(text.charAt(pos)) >= 0) pos++;
+            if (pos == start) throw error("Unsupported value", index);
+        }
+        
+        private void skipWhitespace() {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) pos++;
+        }
+        
+        private char peek() {
+            return pos < text.length() ? text.charAt(pos) : '\0';
+        }
+        
+        private void expect(char c, int index) {
+            if (peek() != c) throw error("Expected '" + c + "'", index);
+            pos++;
+        }
+        
+        private IllegalArgumentException error(String message, int index) {
+            return new IllegalArgumentException(message + " (result " + index + ")");
+        }
+    }
+    
     public static void main(String[] args) throws Exception {
+        if (args.length == 5 && "--convert".equals(args[0])) {
+            loadStudents(args[1]);
+            loadQuizResults(args[2]);
+            studentsCsvPath = args[3];
+            quizCsvPath = args[4];
+            saveStudents();
+            saveQuizResults(quizResults, savedIngestSeq);
+            System.out.println("Konverterte til " + studentsCsvPath + " og " + quizCsvPath);
+            return;
+        }
+        
         if (args.length < 3) {
             System.err.println("Bruk: java QuizAnalyticsAPI <port> <students-csv> <quiz-results-csv>");
+            System.err.println("      java QuizAnalyticsAPI --convert <students-inn> <quiz-inn> <students-ut> <quiz-ut>");
             System.exit(1);
         }
         
@@ -93,17 +942,53 @@ public class QuizAnalyticsAPI {
         studentsCsvPath = args[1];
         quizCsvPath = args[2];
         
-        loadStudentsFromCSV(studentsCsvPath);
-        loadQuizResultsFromCSV(quizCsvPath);
+        loadStudents(studentsCsvPath);
+        loadQuizResults(quizCsvPath);
+        replayIngestLog();
         
-        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        loadTombstones();
+        analytics = AnalyticsEngine.fromSystemProperties();
+        rebuildAggregates();
+        rebuildLeaderboards();
+        rebuildProgramStats();
         
-        server.createContext("/api/students", QuizAnalyticsAPI::handleStudentsRequest);
-        server.createContext("/api/students/", QuizAnalyticsAPI::handleStudentRequest);
-        server.createContext("/api/analytics/quiz-stats", QuizAnalyticsAPI::handleQuizStatsRequest);
-        server.createContext("/api/analytics/student-stats/", QuizAnalyticsAPI::handleStudentStatsRequest);
+        ScheduledExecutorService compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "compactor");
+            t.setDaemon(true);
+            return t;
+        });
+        compactor.scheduleWithFixedDelay(QuizAnalyticsAPI::runCompaction,
+            COMPACTION_INTERVAL_SECONDS, COMPACTION_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(QuizAnalyticsAPI::shutdown));
         
-        server.setExecutor(null);
+        openIngestSegment(lastIngestSegment() + 1);
+        Thread ingestWriter = new Thread(QuizAnalyticsAPI::runIngestWriter, "ingest-writer");
+        ingestWriter.setDaemon(true);
+        ingestWriter.start();
+        
+        HttpServer server = Http.createServer(port);
+        
+        // Alle analyse-rutene deler én adaptiv grense, så de ikke fortrenger oppslag.
+        // /api/quiz-results har allerede mottrykk via ingestQueue.
+        AdmissionControl analytics = AdmissionControl.forScans("/api/analytics/*");
+        server.createContext("/api/students", QuizAnalyticsAPI::handleStudentsRequest)
+            .getFilters().add(AdmissionControl.forScans("/api/students"));
+        server.createContext("/api/students/", QuizAnalyticsAPI::handleStudentRequest)
+            .getFilters().add(AdmissionControl.forLookups("/api/students/{id}"));
+        server.createContext("/api/analytics/quiz-stats", QuizAnalyticsAPI::handleQuizStatsRequest)
+            .getFilters().add(analytics);
+        server.createContext("/api/analytics/student-stats/", QuizAnalyticsAPI::handleStudentStatsRequest)
+            .getFilters().add(analytics);
+        server.createContext("/api/analytics/quiz-distribution/", QuizAnalyticsAPI::handleQuizDistributionRequest)
+            .getFilters().add(analytics);
+        server.createContext("/api/analytics/leaderboard/", QuizAnalyticsAPI::handleLeaderboardRequest)
+            .getFilters().add(analytics);
+        server.createContext("/api/analytics/program-stats", QuizAnalyticsAPI::handleProgramStatsRequest)
+            .getFilters().add(analytics);
+        server.createContext("/api/quiz-results", QuizAnalyticsAPI::handleQuizResultsRequest);
+        
+        // Flere tråder, siden innsending venter på skrivetråden
+        server.setExecutor(Executors.newCachedThreadPool());
         server.start();
         
         System.out.println("QuizAnalyticsAPI server startet på port " + port);
@@ -113,29 +998,28 @@ public class QuizAnalyticsAPI {
         System.out.println("  DELETE /api/students/{id}                 - Slett student");
         System.out.println("  GET    /api/analytics/quiz-stats           - Hent quiz-statistikk");
         System.out.println("  GET    /api/analytics/student-stats/{id}   - Hent studentstatistikk");
+        System.out.println("  GET    /api/analytics/quiz-distribution/{id} - Persentiler og karakterfordeling");
+        System.out.println("  GET    /api/analytics/leaderboard/{id}?k=  - Topp k resultater for en quiz");
+        System.out.println("  GET    /api/analytics/program-stats        - Statistikk per studieprogram");
+        System.out.println("  POST   /api/quiz-results                  - Send inn resultater (JSON eller NDJSON)");
     }
     
-    private static void loadStudentsFromCSV(String filePath) throws IOException {
-        List<String> lines = Files.readAllLines(Paths.get(filePath));
-        for (String line : lines) {
-            if (line.trim().isEmpty()) continue;
-            
-            String[] parts = line.split(",");
-            if (parts.length >= 3) {
-                try {
-                    int id = Integer.parseInt(parts[0].trim());
-                    String name = parts[1].trim();
-                    String program = parts[2].trim();
-                    students.put(id, new Student(id, name, program));
-                } catch (NumberFormatException e) {
-                    System.err.println("Feil ved parsing av linje: " + line);
-                }
-            }
+    private static void loadStudents(String filePath) throws IOException {
+        TableStore.load(students, filePath);
+        System.out.println("Lastet inn " + students.size() + " studenter"
+            + (TableStore.isBinaryFile(filePath) ? " (binært format)" : ""));
+    }
+    
+    private static void loadQuizResults(String filePath) throws IOException {
+        if (TableStore.isBinaryFile(filePath)) {
+            loadQuizResultsFromBinary(filePath);
+        } else {
+            loadQuizResultsFromCSV(filePath);
         }
-        System.out.println("Lastet inn " + students.size() + " studenter");
     }
     
     private static void loadQuizResultsFromCSV(String filePath) throws IOException {
+        JfrEvents.FileIo event = JfrEvents.FileIo.start("load", filePath);
         List<String> lines = Files.readAllLines(Paths.get(filePath));
         boolean firstLine = true;
         for (String line : lines) {
@@ -143,6 +1027,10 @@ public class QuizAnalyticsAPI {
                 firstLine = false;
                 continue; // Skip header
             }
+            if (line.startsWith(INGEST_SEQ_PREFIX)) {
+                savedIngestSeq = Long.parseLong(line.substring(INGEST_SEQ_PREFIX.length()).trim());
+                continue;
+            }
             if (line.trim().isEmpty()) continue;
             
             String[] parts = line.split(",");
@@ -152,13 +1040,32 @@ public class QuizAnalyticsAPI {
                     int studentId = Integer.parseInt(parts[1].trim());
                     int score = Integer.parseInt(parts[2].trim());
                     int maxScore = Integer.parseInt(parts[3].trim());
-                    quizResults.add(new QuizResult(quizId, studentId, score, maxScore));
+                    appendQuizResult(quizId, studentId, score, maxScore);
                 } catch (NumberFormatException e) {
                     System.err.println("Feil ved parsing av linje: " + line);
                 }
             }
         }
-        System.out.println("Lastet inn " + quizResults.size() + " quiz-resultater");
+        event.finish(quizResults.size);
+        System.out.println("Lastet inn " + quizResults.size + " quiz-resultater");
+    }
+    
+    /**
+     * Quiz-resultater har faste 16-byte poster: quizId, studentId, score, maxScore.
+     * Etter postene kan det stå en long med siste innsendte sekvensnummer.
+     */
+    private static void loadQuizResultsFromBinary(String filePath) throws IOException {
+        JfrEvents.FileIo event = JfrEvents.FileIo.start("load", filePath);
+        ByteBuffer buffer = TableStore.readFile(filePath);
+        int count = TableStore.readBinaryHeader(buffer, QUIZ_RESULT_MAGIC, filePath);
+        for (int i = 0; i < count; i++) {
+            appendQuizResult(buffer.getInt(), buffer.getInt(), buffer.getInt(), buffer.getInt());
+        }
+        if (buffer.remaining() >= Long.BYTES) {
+            savedIngestSeq = buffer.getLong();
+        }
+        event.finish(count);
+        System.out.println("Lastet inn " + quizResults.size + " quiz-resultater (binært format)");
     }
     
     private static void handleStudentsRequest(HttpExchange exchange) throws IOException {
@@ -166,16 +1073,22 @@ public class QuizAnalyticsAPI {
         
         if ("GET".equals(method)) {
             StringBuilder json = new StringBuilder("[");
-            boolean first = true;
-            for (Student student : students.values()) {
-                if (!first) json.append(",");
-                json.append(student.toJSON());
-                first = false;
+            dataLock.readLock().lock();
+            try {
+                boolean first = true;
+                for (Student student : students.values()) {
+                    if (tombstones.contains(student.id)) continue;
+                    if (!first) json.append(",");
+                    json.append(student.toJSON());
+                    first = false;
+                }
+            } finally {
+                dataLock.readLock().unlock();
             }
             json.append("]");
-            sendResponse(exchange, 200, json.toString());
+            Http.sendResponse(exchange, 200, json.toString());
         } else {
-            sendResponse(exchange, 405, "{\"error\":\"Method not allowed\"}");
+            Http.sendResponse(exchange, 405, "{\"error\":\"Method not allowed\"}");
         }
     }
     
@@ -185,7 +1098,7 @@ public class QuizAnalyticsAPI {
         String[] parts = path.split("/");
         
         if (parts.length < 4) {
-            sendResponse(exchange, 400, "{\"error\":\"Invalid request\"}");
+            Http.sendResponse(exchange, 400, "{\"error\":\"Invalid request\"}");
             return;
         }
         
@@ -193,153 +1106,753 @@ public class QuizAnalyticsAPI {
             int studentId = Integer.parseInt(parts[3]);
             
             if ("GET".equals(method)) {
-                if (students.containsKey(studentId)) {
-                    sendResponse(exchange, 200, students.get(studentId).toJSON());
+                Student student;
+                dataLock.readLock().lock();
+                try {
+                    student = tombstones.contains(studentId) ? null : students.get(studentId);
+                } finally {
+                    dataLock.readLock().unlock();
+                }
+                if (student != null) {
+                    Http.sendResponse(exchange, 200, student.toJSON());
                 } else {
-                    sendResponse(exchange, 404, "{\"error\":\"Student not found\"}");
+                    Http.sendResponse(exchange, 404, "{\"error\":\"Student not found\"}");
                 }
             } else if ("DELETE".equals(method)) {
-                if (students.containsKey(studentId)) {
-                    students.remove(studentId);
-                    quizResults.removeIf(r -> r.studentId == studentId);
-                    saveStudentsToCSV();
-                    saveQuizResultsToCSV();
-                    sendResponse(exchange, 204, ""); // generere advarsel siden 204 skal ikke ha respons
+                boolean deleted;
+                dataLock.writeLock().lock();
+                try {
+                    deleted = students.containsKey(studentId) && !tombstones.contains(studentId);
+                    if (deleted) {
+                        tombstoneStudent(studentId);
+                    }
+                } finally {
+                    dataLock.writeLock().unlock();
+                }
+                if (deleted) {
+                    Http.sendResponse(exchange, 204, "");
                 } else {
-                    sendResponse(exchange, 404, "{\"error\":\"Student not found\"}");
+                    Http.sendResponse(exchange, 404, "{\"error\":\"Student not found\"}");
                 }
             } else {
-                sendResponse(exchange, 405, "{\"error\":\"Method not allowed\"}");
+                Http.sendResponse(exchange, 405, "{\"error\":\"Method not allowed\"}");
             }
         } catch (NumberFormatException e) {
-            sendResponse(exchange, 400, "{\"error\":\"Invalid student ID\"}");
+            Http.sendResponse(exchange, 400, "{\"error\":\"Invalid student ID\"}");
         }
     }
     
     private static void handleQuizStatsRequest(HttpExchange exchange) throws IOException {
-        // Beregn statistikk for hver quiz
-        Map<Integer, List<QuizResult>> byQuiz = quizResults.stream()
-            .collect(Collectors.groupingBy(r -> r.quizId));
+        // Statistikken er allerede beregnet - bare les ut ett aggregat per quiz
+        sendResponse(exchange, responseCache.get("quiz-stats", () -> {
+            StringBuilder json = new StringBuilder("[");
+            boolean first = true;
+            for (QuizAggregate aggregate : quizAggregates.values()) {
+                if (!first) json.append(",");
+                json.append(aggregate.toStats().toJSON());
+                first = false;
+            }
+            json.append("]");
+            return new CachedResponse(200, json.toString());
+        }));
+    }
+    
+    private static void handleStudentStatsRequest(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        String[] parts = path.split("/");
         
-        StringBuilder json = new StringBuilder("[");
-        boolean first = true;
+        if (parts.length < 5) {
+            Http.sendResponse(exchange, 400, "{\"error\":\"Invalid request\"}");
+            return;
+        }
         
-        for (int quizId : new TreeSet<>(byQuiz.keySet())) {
-            List<QuizResult> results = byQuiz.get(quizId);
-            QuizStats stats = calculateQuizStats(quizId, results);
+        try {
+            int studentId = Integer.parseInt(parts[4]);
             
-            if (!first) json.append(",");
-            json.append(stats.toJSON());
-            first = false;
+            sendResponse(exchange, responseCache.get("student-stats/" + studentId, () -> {
+                StudentResults studentResults = resultsByStudent.get(studentId);
+                if (studentResults == null || tombstones.contains(studentId)) {
+                    return new CachedResponse(404, "{\"error\":\"No results found for student\"}");
+                }
+                return new CachedResponse(200, String.format(
+                    "{\"student_id\":%d,\"quizzes_taken\":%d,\"average_percentage\":%.2f}",
+                    studentId, studentResults.count, studentResults.averagePercentage()
+                ));
+            }));
+        } catch (NumberFormatException e) {
+            Http.sendResponse(exchange, 400, "{\"error\":\"Invalid student ID\"}");
         }
-        
-        json.append("]");
-        sendResponse(exchange, 200, json.toString());
     }
     
-    private static void handleStudentStatsRequest(HttpExchange exchange) throws IOException {
+    /**
+     * GET /api/analytics/quiz-distribution/{quizId} - p50/p90/p99 og fordeling i
+     * 10-prosentsbånd, lest fra quizens histogram (konstant tid).
+     */
+    private static void handleQuizDistributionRequest(HttpExchange exchange) throws IOException {
         String path = exchange.getRequestURI().getPath();
         String[] parts = path.split("/");
         
         if (parts.length < 5) {
-            sendResponse(exchange, 400, "{\"error\":\"Invalid request\"}");
+            Http.sendResponse(exchange, 400, "{\"error\":\"Invalid request\"}");
             return;
         }
         
         try {
-            int studentId = Integer.parseInt(parts[4]);
-            
-            List<QuizResult> studentResults = quizResults.stream()
-                .filter(r -> r.studentId == studentId)
-                .collect(Collectors.toList());
+            int quizId = Integer.parseInt(parts[4]);
             
-            if (studentResults.isEmpty()) {
-                sendResponse(exchange, 404, "{\"error\":\"No results found for student\"}");
-                return;
+            sendResponse(exchange, responseCache.get("quiz-distribution/" + quizId, () -> {
+                QuizAggregate aggregate = quizAggregates.get(quizId);
+                if (aggregate == null) {
+                    return new CachedResponse(404, "{\"error\":\"Quiz not found\"}");
+                }
+                return new CachedResponse(200, distributionJSON(aggregate));
+            }));
+        } catch (NumberFormatException e) {
+            Http.sendResponse(exchange, 400, "{\"error\":\"Invalid quiz ID\"}");
+        }
+    }
+    
+    private static void handleProgramStatsRequest(HttpExchange exchange) throws IOException {
+        if (!"GET".equals(exchange.getRequestMethod())) {
+            Http.sendResponse(exchange, 405, "{\"error\":\"Method not allowed\"}");
+            return;
+        }
+        
+        if ("true".equals(Http.queryParam(exchange.getRequestURI().getRawQuery(), "verify"))) {
+            String json;
+            dataLock.readLock().lock();
+            try {
+                json = verifyProgramStats();
+            } finally {
+                dataLock.readLock().unlock();
             }
-            
-            double averageScore = studentResults.stream()
-                .mapToDouble(QuizResult::getPercentage)
-                .average()
-                .orElse(0);
-            
-            String json = String.format(
-                "{\"student_id\":%d,\"quizzes_taken\":%d,\"average_percentage\":%.2f}",
-                studentId, studentResults.size(), averageScore
-            );
-            
-            sendResponse(exchange, 200, json);
+            Http.sendResponse(exchange, 200, json);
+            return;
+        }
+        
+        // Joinen er allerede materialisert - bare les ut ett aggregat per program
+        sendResponse(exchange, responseCache.get("program-stats", () -> {
+            StringBuilder json = new StringBuilder("[");
+            boolean first = true;
+            for (ProgramAggregate aggregate : programStats.values()) {
+                if (!first) json.append(",");
+                json.append(aggregate.toJSON());
+                first = false;
+            }
+            json.append("]");
+            return new CachedResponse(200, json.toString());
+        }));
+    }
+    
+    private static void handleLeaderboardRequest(HttpExchange exchange) throws IOException {
+        if (!"GET".equals(exchange.getRequestMethod())) {
+            Http.sendResponse(exchange, 405, "{\"error\":\"Method not allowed\"}");
+            return;
+        }
+        
+        String path = exchange.getRequestURI().getPath();
+        String[] parts = path.split("/");
+        
+        if (parts.length != 5) {
+            Http.sendResponse(exchange, 400, "{\"error\":\"Invalid quiz ID\"}");
+            return;
+        }
+        
+        int quizId;
+        int k = 10;
+        try {
+            quizId = Integer.parseInt(parts[4]);
         } catch (NumberFormatException e) {
-            sendResponse(exchange, 400, "{\"error\":\"Invalid student ID\"}");
+            Http.sendResponse(exchange, 400, "{\"error\":\"Invalid quiz ID\"}");
+            return;
+        }
+        String kParam = Http.queryParam(exchange.getRequestURI().getRawQuery(), "k");
+        if (kParam != null) {
+            try {
+                k = Integer.parseInt(kParam);
+            } catch (NumberFormatException e) {
+                k = -1;
+            }
+        }
+        if (k < 1 || k > MAX_LEADERBOARD_K) {
+            Http.sendResponse(exchange, 400, "{\"error\":\"k must be between 1 and " + MAX_LEADERBOARD_K + "\"}");
+            return;
         }
+        
+        int limit = k;
+        sendResponse(exchange, responseCache.get("leaderboard/" + quizId + "?k=" + k, () -> {
+            Leaderboard leaderboard = leaderboards.get(quizId);
+            if (leaderboard == null) {
+                return new CachedResponse(404, "{\"error\":\"Quiz not found\"}");
+            }
+            return new CachedResponse(200, leaderboard.toJSON(quizId, limit));
+        }));
     }
     
-    private static QuizStats calculateQuizStats(int quizId, List<QuizResult> results) {
-        QuizStats stats = new QuizStats();
-        stats.quizId = quizId;
-        stats.participantCount = results.size();
+    private static void handleQuizResultsRequest(HttpExchange exchange) throws IOException {
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            Http.sendResponse(exchange, 405, "{\"error\":\"Method not allowed\"}");
+            return;
+        }
         
-        if (results.isEmpty()) {
-            return stats;
+        byte[] body = exchange.getRequestBody().readNBytes(MAX_INGEST_BODY_BYTES + 1);
+        if (body.length > MAX_INGEST_BODY_BYTES) {
+            Http.sendResponse(exchange, 413, "{\"error\":\"Request body too large\"}");
+            return;
         }
         
-        // Beregn gjennomsnitt
-        double sum = results.stream().mapToDouble(r -> r.score).sum();
-        stats.averageScore = sum / results.size();
+        int[] results;
+        try {
+            results = new QuizResultReader(new String(body, StandardCharsets.UTF_8)).readAll();
+        } catch (IllegalArgumentException e) {
+            Http.sendResponse(exchange, 400, "{\"error\":\"" + Http.escapeJSON(e.getMessage()) + "\"}");
+            return;
+        }
         
-        // Beregn standardavvik
-        double variance = results.stream()
-            .mapToDouble(r -> Math.pow(r.score - stats.averageScore, 2))
-            .average()
-            .orElse(0);
-        stats.standardDeviation = Math.sqrt(variance);
+        // Ukjente studenter avvises her; skrivetråden sjekker på nytt i tilfelle en DELETE kom imellom
+        int unknown = -1;
+        dataLock.readLock().lock();
+        try {
+            for (int i = 1; i < results.length && unknown < 0; i += 4) {
+                if (!students.containsKey(results[i]) || tombstones.contains(results[i])) {
+                    unknown = results[i];
+                }
+            }
+        } finally {
+            dataLock.readLock().unlock();
+        }
+        if (unknown >= 0) {
+            Http.sendResponse(exchange, 400, "{\"error\":\"Unknown student_id: " + unknown + "\"}");
+            return;
+        }
         
-        // Min og max
-        stats.minScore = results.stream().mapToInt(r -> r.score).min().orElse(0);
-        stats.maxScore = results.stream().mapToInt(r -> r.score).max().orElse(0);
+        IngestBatch batch = new IngestBatch(results);
+        if (!ingestQueue.offer(batch)) {
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            Http.sendResponse(exchange, 503, "{\"error\":\"Ingestion queue is full, retry later\"}");
+            return;
+        }
         
-        return stats;
+        try {
+            int accepted = batch.accepted.get();
+            Http.sendResponse(exchange, 201, "{\"accepted\":" + accepted + "}");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Http.sendResponse(exchange, 500, "{\"error\":\"Interrupted while storing quiz results\"}");
+        } catch (ExecutionException e) {
+            Http.sendResponse(exchange, 500, "{\"error\":\"Could not store quiz results\"}");
+        }
     }
     
-    private static void saveStudentsToCSV() throws IOException {
-        StringBuilder csv = new StringBuilder();
+    private static String distributionJSON(QuizAggregate aggregate) {
+        int quizId = aggregate.quizId;
+        StringBuilder json = new StringBuilder(String.format(Locale.ROOT,
+                "{\"quiz_id\":%d,\"participants\":%d,\"p50\":%.2f,\"p90\":%.2f,\"p99\":%.2f,\"buckets\":[",
+                quizId, aggregate.count, aggregate.percentile(50), aggregate.percentile(90), aggregate.percentile(99)));
+        int bucketsPerBand = HISTOGRAM_BUCKETS / 10;
+        for (int band = 0; band < 10; band++) {
+            int bandCount = 0;
+            for (int b = band * bucketsPerBand; b < (band + 1) * bucketsPerBand; b++) {
+                bandCount += aggregate.histogram[b];
+            }
+            if (band > 0) json.append(",");
+            json.append("{\"from\":").append(band * 10)
+                .append(",\"to\":").append(band * 10 + 10)
+                .append(",\"count\":").append(bandCount).append("}");
+        }
+        json.append("]}");
+        return json.toString();
+    }
+    
+    /** Legger til en rad i kolonnene og studentindeksen (uten quiz-aggregatene, se rebuildAggregates). */
+    private static int appendQuizResult(int quizId, int studentId, int score, int maxScore) {
+        int row = quizResults.add(quizId, studentId, score, maxScore);
+        resultsByStudent.computeIfAbsent(studentId, id -> new StudentResults())
+            .add(row, quizResults.percentage(row));
+        return row;
+    }
+    
+    /** Bygger alle quiz-aggregatene med én full skanning (parallelt hvis slått på). */
+    private static void rebuildAggregates() {
+        long start = System.nanoTime();
+        quizAggregates = analytics.aggregate(quizResults);
+        System.out.printf("Beregnet statistikk for %d quizer på %.1f ms (%s)%n",
+            quizAggregates.size(), (System.nanoTime() - start) / 1e6,
+            analytics.parallel ? "parallelt, " + analytics.parallelism + " tråder" : "sekvensielt");
+    }
+    
+    /** Bygger topplistene fra kolonnene; slettede rader hoppes over. */
+    private static void rebuildLeaderboards() {
+        JfrEvents.Analytics event = JfrEvents.Analytics.start("leaderboards");
+        leaderboards = new HashMap<>();
+        for (int row = 0; row < quizResults.size; row++) {
+            if (quizResults.deleted.get(row)) continue;
+            leaderboards.computeIfAbsent(quizResults.quizId[row], id -> new Leaderboard())
+                .add(leaderboardEntry(row));
+        }
+        event.finish(quizResults.size, false);
+    }
+    
+    /**
+     * Full hash-join: students er byggsiden (id -> program), resultatradene
+     * probes mot den. Brukes ved oppstart; deretter holdes programStats
+     * oppdatert inkrementelt.
+     */
+    private static TreeMap<String, ProgramAggregate> computeProgramStats() {
+        JfrEvents.Analytics event = JfrEvents.Analytics.start("program-stats");
+        TreeMap<String, ProgramAggregate> stats = new TreeMap<>();
         for (Student student : students.values()) {
-            csv.append(student.id).append(",")
-               .append(student.name).append(",")
-               .append(student.program).append("\n");
+            if (tombstones.contains(student.id)) continue;
+            stats.computeIfAbsent(student.program, ProgramAggregate::new).students++;
+        }
+        for (int row = 0; row < quizResults.size; row++) {
+            if (quizResults.deleted.get(row)) continue;
+            Student student = students.get(quizResults.studentId[row]);
+            if (student == null || tombstones.contains(student.id)) continue;
+            stats.get(student.program).addResult(quizResults.score[row], quizResults.maxScore[row]);
         }
-        Files.write(Paths.get(studentsCsvPath), csv.toString().getBytes());
+        event.finish(quizResults.size, false);
+        return stats;
+    }
+    
+    private static void rebuildProgramStats() {
+        programStats = computeProgramStats();
     }
     
-    private static void saveQuizResultsToCSV() throws IOException {
-        StringBuilder csv = new StringBuilder("quiz_id,student_id,score,max_score\n");
-        for (QuizResult result : quizResults) {
-            csv.append(result.quizId).append(",")
-               .append(result.studentId).append(",")
-               .append(result.score).append(",")
-               .append(result.maxScore).append("\n");
+    /**
+     * Sammenligner programStats med en full ny join og lister programmene som
+     * avviker. Alle tall er heltall, så de må være nøyaktig like. Kalles med read-lock.
+     */
+    private static String verifyProgramStats() {
+        TreeMap<String, ProgramAggregate> expected = computeProgramStats();
+        TreeSet<String> programs = new TreeSet<>(expected.keySet());
+        programs.addAll(programStats.keySet());
+        StringBuilder mismatched = new StringBuilder();
+        for (String program : programs) {
+            ProgramAggregate actual = programStats.get(program);
+            ProgramAggregate full = expected.get(program);
+            if (actual == null || full == null || actual.students != full.students
+                    || actual.results != full.results || actual.percentageMicros != full.percentageMicros) {
+                if (mismatched.length() > 0) mismatched.append(",");
+                mismatched.append("{\"incremental\":").append(actual == null ? "null" : actual.toJSON())
+                    .append(",\"recomputed\":").append(full == null ? "null" : full.toJSON()).append("}");
+            }
         }
-        Files.write(Paths.get(quizCsvPath), csv.toString().getBytes());
+        return "{\"consistent\":" + (mismatched.length() == 0) + ",\"programs\":" + programs.size()
+            + ",\"mismatched\":[" + mismatched + "]}";
     }
     
-    private static String escapeJSON(String str) {
-        if (str == null) return "";
-        return str.replace("\\", "\\\\")
-                  .replace("\"", "\\\"")
-                  .replace("\n", "\\n")
-                  .replace("\r", "\\r");
+    private static LeaderboardEntry leaderboardEntry(int row) {
+        int studentId = quizResults.studentId[row];
+        int score = quizResults.score[row];
+        int maxScore = quizResults.maxScore[row];
+        Student student = students.get(studentId);
+        String json = String.format(Locale.ROOT,
+            "\"student_id\":%d,\"name\":%s,\"score\":%d,\"max_score\":%d,\"percentage\":%.2f}",
+            studentId, student == null ? "null" : "\"" + Http.escapeJSON(student.name) + "\"",
+            score, maxScore, score * 100.0 / maxScore);
+        return new LeaderboardEntry(studentId, score, maxScore, json);
     }
     
-    private static void sendResponse(HttpExchange exchange, int statusCode, String response) 
-            throws IOException {
-        exchange.getResponseHeaders().set("Content-Type", "application/json");
-        exchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
+    /**
+     * Myk sletting: skriver gravsteinen til disk, trekker studentens rader ut av
+     * aggregatene og merker dem som slettet - O(antall resultater for studenten).
+     * Filene skrives ikke på nytt her; det gjør komprimeringen. Kalles med write-lock.
+     */
+    private static void tombstoneStudent(int studentId) throws IOException {
+        Files.write(tombstonePath(), (studentId + "\n").getBytes(),
+            StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.SYNC);
+        tombstones.add(studentId);
+        dataVersion++;
+        
+        ProgramAggregate program = programStats.get(students.get(studentId).program);
+        if (--program.students == 0) {
+            programStats.remove(program.program);
+        }
         
-        byte[] responseBytes = response.getBytes();
-        exchange.sendResponseHeaders(statusCode, responseBytes.length);
+        StudentResults studentResults = resultsByStudent.get(studentId);
+        if (studentResults == null) return;
+        for (int i = 0; i < studentResults.count; i++) {
+            int row = studentResults.rows[i];
+            int quizId = quizResults.quizId[row];
+            QuizAggregate aggregate = quizAggregates.get(quizId);
+            aggregate.remove(quizResults.score[row], quizResults.maxScore[row]);
+            if (aggregate.count == 0) {
+                quizAggregates.remove(quizId);
+            }
+            Leaderboard leaderboard = leaderboards.get(quizId);
+            leaderboard.remove(new LeaderboardEntry(quizResults.studentId[row],
+                quizResults.score[row], quizResults.maxScore[row], null));
+            if (leaderboard.isEmpty()) {
+                leaderboards.remove(quizId);
+            }
+            program.removeResult(quizResults.score[row], quizResults.maxScore[row]);
+            quizResults.markDeleted(row);
+        }
+    }
+    
+    /** Fjerner en gravlagt students rader fysisk, via indeksen. Aggregatene er allerede oppdatert. */
+    private static void purgeStudent(int studentId) {
+        students.remove(studentId);
+        StudentResults studentResults = resultsByStudent.remove(studentId);
+        if (studentResults == null) return;
         
-        OutputStream os = exchange.getResponseBody();
-        os.write(responseBytes);
-        os.close();
+        // Fjern fra høyeste radnummer og ned, så raden som flyttes inn aldri er en av studentens egne
+        int[] rows = Arrays.copyOf(studentResults.rows, studentResults.count);
+        Arrays.sort(rows);
+        for (int i = rows.length - 1; i >= 0; i--) {
+            int row = rows[i];
+            int movedFrom = quizResults.removeRow(row);
+            if (movedFrom >= 0) {
+                resultsByStudent.get(quizResults.studentId[row]).replaceRow(movedFrom, row);
+            }
+        }
+    }
+    
+    /**
+     * Komprimering: fjerner gravlagte studenter fysisk og skriver filene på nytt,
+     * inkludert resultater som så langt bare ligger i innsendingsloggen.
+     * 
+     * Under låsene fjernes radene, innsendingsloggen roteres til et nytt segment
+     * og tabellene kopieres. Filene skrives etter at låsene er sluppet, så lesere,
+     * innsending og DELETE ikke venter på disken. Segmentene og gravsteinene som
+     * filene dekker, slettes til slutt. Stopper prosessen før det, spilles bare
+     * postene etter sekvensnummeret i quiz-filen av, og gravsteinene fjernes på nytt.
+     */
+    private static void runCompaction() {
+        synchronized (compactionLock) {
+            try {
+                int purged;
+                int ingested;
+                int coveredSegment = -1;
+                long coveredSeq;
+                List<Student> studentRows;
+                ResultColumns resultRows;
+                synchronized (ingestLock) {
+                    dataLock.writeLock().lock();
+                    try {
+                        if (tombstones.isEmpty() && ingestLogRecords == 0 && !compactionPending
+                                && !ingestLogFailed) return;
+                        purged = tombstones.size();
+                        ingested = ingestLogRecords;
+                        for (int studentId : tombstones) {
+                            purgeStudent(studentId);
+                        }
+                        tombstones.clear();
+                        compactionPending = true;
+                        
+                        // Nye innsendinger havner i neste segment og er ikke med i kopien
+                        if (ingestLog != null) {
+                            ingestLog.close();
+                            coveredSegment = ingestSegment;
+                            openIngestSegment(ingestSegment + 1);
+                            ingestLogFailed = false;
+                        }
+                        ingestLogRecords = 0;
+                        coveredSeq = ingestSeq;
+                        studentRows = students.snapshot();
+                        resultRows = quizResults.copy();
+                    } finally {
+                        dataLock.writeLock().unlock();
+                    }
+                }
+                
+                long start = System.nanoTime();
+                TableStore.save(studentRows, Student.SCHEMA, studentsCsvPath);
+                saveQuizResults(resultRows, coveredSeq);
+                for (int segment : listIngestSegments()) {
+                    if (segment <= coveredSegment) {
+                        Files.deleteIfExists(ingestSegmentPath(segment));
+                    }
+                }
+                dataLock.writeLock().lock();
+                try {
+                    rewriteTombstones();
+                } finally {
+                    dataLock.writeLock().unlock();
+                }
+                compactionPending = false;
+                System.out.printf("Komprimering: fjernet %d studenter og skrev %d nye resultater på %.1f ms%n",
+                    purged, ingested, (System.nanoTime() - start) / 1e6);
+            } catch (IOException e) {
+                System.err.println("Komprimering feilet: " + e.getMessage());
+            }
+        }
+    }
+    
+    /** Gravsteiner som kom til mens filene ble skrevet, blir stående (kalles med write-lock). */
+    private static void rewriteTombstones() throws IOException {
+        if (tombstones.isEmpty()) {
+            Files.deleteIfExists(tombstonePath());
+            return;
+        }
+        StringBuilder ids = new StringBuilder();
+        for (int studentId : tombstones) {
+            ids.append(studentId).append("\n");
+        }
+        TableStore.writeAtomically(tombstonePath().toString(), ids.toString().getBytes(StandardCharsets.UTF_8));
+    }
+    
+    /** Kalles ved avslutning: siste komprimering, og fjerner en tom innsendingslogg. */
+    private static void shutdown() {
+        runCompaction();
+        synchronized (ingestLock) {
+            try {
+                if (ingestLog != null) {
+                    ingestLog.close();
+                    ingestLog = null;
+                    if (ingestLogRecords == 0) {
+                        Files.deleteIfExists(ingestSegmentPath(ingestSegment));
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Kunne ikke lukke innsendingsloggen: " + e.getMessage());
+            }
+        }
+    }
+    
+    /**
+     * Skrivetråden: tar alle ventende batcher på én gang (gruppe-commit), skriver
+     * dem til loggen med én fsync og legger dem deretter inn i statistikken.
+     */
+    private static void runIngestWriter() {
+        List<IngestBatch> batches = new ArrayList<>();
+        while (true) {
+            try {
+                batches.add(ingestQueue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            ingestQueue.drainTo(batches);
+            try {
+                int[] accepted = writeIngestBatches(batches);
+                for (int i = 0; i < batches.size(); i++) {
+                    batches.get(i).accepted.complete(accepted[i]);
+                }
+            } catch (IOException e) {
+                System.err.println("Kunne ikke skrive innsendte resultater: " + e.getMessage());
+                for (IngestBatch batch : batches) {
+                    batch.accepted.completeExceptionally(e);
+                }
+            }
+            batches.clear();
+        }
+    }
+    
+    /**
+     * Skriver batchene til loggen og legger dem inn i statistikken. Feiler
+     * skrivingen, kuttes segmentet tilbake og sekvensnummeret settes tilbake,
+     * så batchen verken spilles av ved oppstart eller telles to ganger når
+     * klienten prøver igjen.
+     */
+    private static int[] writeIngestBatches(List<IngestBatch> batches) throws IOException {
+        synchronized (ingestLock) {
+            if (ingestLogFailed) {
+                throw new IOException("Innsendingsloggen er ubrukelig til neste komprimering");
+            }
+            long startPosition = ingestLog.size();
+            long startSeq = ingestSeq;
+            
+            // Sekvensnumrene deles ut under låsen, så en rotering aldri deler en batch
+            StringBuilder csv = new StringBuilder();
+            int records = 0;
+            for (IngestBatch batch : batches) {
+                int[] r = batch.results;
+                for (int i = 0; i < r.length; i += 4) {
+                    csv.append(++ingestSeq).append(",").append(r[i]).append(",").append(r[i + 1]).append(",")
+                       .append(r[i + 2]).append(",").append(r[i + 3]).append("\n");
+                }
+                records += batch.size();
+            }
+            
+            ByteBuffer buffer = ByteBuffer.wrap(csv.toString().getBytes(StandardCharsets.UTF_8));
+            try {
+                while (buffer.hasRemaining()) {
+                    ingestLog.write(buffer);
+                }
+                ingestLog.force(false);
+            } catch (IOException e) {
+                try {
+                    ingestLog.truncate(startPosition);
+                    ingestLog.force(false);
+                    ingestSeq = startSeq;
+                } catch (IOException truncateFailure) {
+                    // Postene kan ligge igjen i segmentet; sekvensnumrene deres brukes ikke på nytt
+                    ingestLogFailed = true;
+                    System.err.println("Kunne ikke kutte innsendingsloggen: " + truncateFailure.getMessage());
+                }
+                throw e;
+            }
+            ingestLogRecords += records;
+            
+            int[] accepted = new int[batches.size()];
+            dataLock.writeLock().lock();
+            try {
+                dataVersion++;
+                for (int b = 0; b < batches.size(); b++) {
+                    int[] r = batches.get(b).results;
+                    for (int i = 0; i < r.length; i += 4) {
+                        if (addIngestedResult(r[i], r[i + 1], r[i + 2], r[i + 3])) {
+                            accepted[b]++;
+                        }
+                    }
+                }
+            } finally {
+                dataLock.writeLock().unlock();
+            }
+            return accepted;
+        }
+    }
+    
+    /** Legger ett innsendt resultat inn i kolonnene og aggregatet. Ukjente og slettede studenter hoppes over. */
+    private static boolean addIngestedResult(int quizId, int studentId, int score, int maxScore) {
+        if (!students.containsKey(studentId) || tombstones.contains(studentId)) return false;
+        int row = appendQuizResult(quizId, studentId, score, maxScore);
+        quizAggregates.computeIfAbsent(quizId, QuizAggregate::new).add(score, maxScore);
+        leaderboards.computeIfAbsent(quizId, id -> new Leaderboard()).add(leaderboardEntry(row));
+        programStats.get(students.get(studentId).program).addResult(score, maxScore);
+        return true;
+    }
+    
+    private static Path ingestSegmentPath(int segment) {
+        return Paths.get(quizCsvPath + ".log." + segment);
+    }
+    
+    /** Finner numrene på eksisterende segmenter av innsendingsloggen, i stigende rekkefølge. */
+    private static List<Integer> listIngestSegments() throws IOException {
+        Path quizPath = Paths.get(quizCsvPath).toAbsolutePath();
+        String prefix = quizPath.getFileName() + ".log.";
+        List<Integer> segments = new ArrayList<>();
+        try (DirectoryStream<Path> dir = Files.newDirectoryStream(quizPath.getParent(), prefix + "*")) {
+            for (Path file : dir) {
+                try {
+                    segments.add(Integer.parseInt(file.getFileName().toString().substring(prefix.length())));
+                } catch (NumberFormatException e) {
+                    // Ikke et loggsegment
+                }
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+    
+    private static int lastIngestSegment() throws IOException {
+        List<Integer> segments = listIngestSegments();
+        return segments.isEmpty() ? 0 : segments.get(segments.size() - 1);
+    }
+    
+    private static void openIngestSegment(int segment) throws IOException {
+        ingestLog = FileChannel.open(ingestSegmentPath(segment),
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        ingestSegment = segment;
+    }
+    
+    /**
+     * Leser inn resultater som ble sendt inn etter siste komprimering (før rebuildAggregates).
+     * Poster med sekvensnummer til og med det i quiz-filen er allerede med der og hoppes
+     * over; et segment med bare slike poster ble igjen etter en avbrutt komprimering og slettes.
+     */
+    private static void replayIngestLog() throws IOException {
+        ingestSeq = savedIngestSeq;
+        for (int segment : listIngestSegments()) {
+            Path path = ingestSegmentPath(segment);
+            JfrEvents.FileIo event = JfrEvents.FileIo.start("replay", path.toString());
+            int pendingBefore = ingestLogRecords;
+            
+            // Bare hele linjer: en avkuttet siste linje etter krasj ble aldri bekreftet til klienten
+            String content = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+            content = content.substring(0, content.lastIndexOf('\n') + 1);
+            for (String line : content.split("\n")) {
+                String[] parts = line.split(",");
+                if (parts.length != 5) continue;
+                try {
+                    long seq = Long.parseLong(parts[0]);
+                    ingestSeq = Math.max(ingestSeq, seq);
+                    if (seq <= savedIngestSeq) continue;
+                    ingestLogRecords++;
+                    int studentId = Integer.parseInt(parts[2]);
+                    if (!students.containsKey(studentId)) continue;
+                    appendQuizResult(Integer.parseInt(parts[1]), studentId,
+                        Integer.parseInt(parts[3]), Integer.parseInt(parts[4]));
+                } catch (NumberFormatException e) {
+                    System.err.println("Feil ved parsing av logglinje: " + line);
+                }
+            }
+            event.finish(ingestLogRecords - pendingBefore);
+            if (ingestLogRecords == pendingBefore) {
+                Files.delete(path);
+            }
+        }
+        if (ingestLogRecords > 0) {
+            System.out.println("Leste inn " + ingestLogRecords + " innsendte resultater fra innsendingsloggen");
+        }
+    }
+    
+    private static Path tombstonePath() {
+        return Paths.get(studentsCsvPath + ".tombstones");
+    }
+    
+    /** Leser gravsteiner fra forrige kjøring og merker radene deres som slettet (før rebuildAggregates). */
+    private static void loadTombstones() throws IOException {
+        Path path = tombstonePath();
+        if (!Files.exists(path)) return;
+        
+        for (String line : Files.readAllLines(path)) {
+            line = line.trim();
+            if (line.isEmpty()) continue;
+            int studentId = Integer.parseInt(line);
+            if (!students.containsKey(studentId) || !tombstones.add(studentId)) continue;
+            
+            StudentResults studentResults = resultsByStudent.get(studentId);
+            if (studentResults == null) continue;
+            for (int i = 0; i < studentResults.count; i++) {
+                quizResults.markDeleted(studentResults.rows[i]);
+            }
+        }
+        if (!tombstones.isEmpty()) {
+            System.out.println("Fant " + tombstones.size() + " slettede studenter som venter på komprimering");
+        }
+    }
+    
+    private static void saveStudents() throws IOException {
+        TableStore.save(students, studentsCsvPath);
+    }
+    
+    /** Skriver radene og det siste innsendte sekvensnummeret de inneholder (utelates når det er 0). */
+    private static void saveQuizResults(ResultColumns rows, long coveredSeq) throws IOException {
+        JfrEvents.FileIo event = JfrEvents.FileIo.start("save", quizCsvPath);
+        byte[] data;
+        if (TableStore.isBinaryFile(quizCsvPath)) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream(rows.size * 16 + Long.BYTES);
+            DataOutputStream out = new DataOutputStream(body);
+            for (int row = 0; row < rows.size; row++) {
+                out.writeInt(rows.quizId[row]);
+                out.writeInt(rows.studentId[row]);
+                out.writeInt(rows.score[row]);
+                out.writeInt(rows.maxScore[row]);
+            }
+            if (coveredSeq > 0) {
+                out.writeLong(coveredSeq);
+            }
+            data = TableStore.encodeBinary(QUIZ_RESULT_MAGIC, rows.size, body);
+        } else {
+            StringBuilder csv = new StringBuilder("quiz_id,student_id,score,max_score\n");
+            if (coveredSeq > 0) {
+                csv.append(INGEST_SEQ_PREFIX).append(coveredSeq).append("\n");
+            }
+            for (int row = 0; row < rows.size; row++) {
+                csv.append(rows.quizId[row]).append(",")
+                   .append(rows.studentId[row]).append(",")
+                   .append(rows.score[row]).append(",")
+                   .append(rows.maxScore[row]).append("\n");
+            }
+            data = csv.toString().getBytes(StandardCharsets.UTF_8);
+        }
+        TableStore.writeAtomically(quizCsvPath, data);
+        event.finish(rows.size, data.length);
+    }
+    
+    private static void sendResponse(HttpExchange exchange, CachedResponse response) throws IOException {
+        Http.sendResponse(exchange, response.status, response.body);
     }
 }
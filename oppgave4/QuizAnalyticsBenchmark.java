@@ -0,0 +1,146 @@
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Benchmark: quiz-statistikk med kolonnelagring mot den gamle strøm-pipelinen.
+ * 
+ * Den gamle varianten lagret ett objekt per resultat i en List og beregnet
+ * statistikken med groupingBy og fire strømmer per quiz. Den nye skanner
+ * int-kolonnene i QuizAnalyticsAPI.ResultColumns med enkle løkker, enten
+ * sekvensielt eller parallelt med AnalyticsEngine.
+ * 
+ * Minnebruken per rad måles som økningen i brukt heap (etter GC) når hver
+ * representasjon bygges; tallene er derfor omtrentlige.
+ * 
+ * Bruk:
+ *   javac -sourcepath ../felles -d . QuizAnalyticsAPI.java QuizAnalyticsBenchmark.java
+ *   java QuizAnalyticsBenchmark [antall-rader] [antall-quizer]
+ * 
+ * Eksempel:
+ *   java -Xmx2g QuizAnalyticsBenchmark 5000000 50
+ */
+public class QuizAnalyticsBenchmark {
+    
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int MEASURED_ROUNDS = 10;
+    
+    // Radformatet fra før kolonnelagringen
+    static class QuizResult {
+        int quizId;
+        int studentId;
+        int score;
+        int maxScore;
+        
+        QuizResult(int quizId, int studentId, int score, int maxScore) {
+            this.quizId = quizId;
+            this.studentId = studentId;
+            this.score = score;
+            this.maxScore = maxScore;
+        }
+    }
+    
+    public static void main(String[] args) {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        int quizzes = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        
+        Random random = new Random(42);
+        long before = usedHeap();
+        List<QuizResult> list = new ArrayList<>(rows);
+        for (int i = 0; i < rows; i++) {
+            int quizId = 1 + random.nextInt(quizzes);
+            int studentId = 100 + random.nextInt(rows / 10 + 1);
+            int score = random.nextInt(101);
+            list.add(new QuizResult(quizId, studentId, score, 100));
+        }
+        long afterList = usedHeap();
+        QuizAnalyticsAPI.ResultColumns columns = new QuizAnalyticsAPI.ResultColumns();
+        for (QuizResult result : list) {
+            columns.add(result.quizId, result.studentId, result.score, result.maxScore);
+        }
+        long afterColumns = usedHeap();
+        System.out.println("Rader: " + rows + ", quizer: " + quizzes);
+        
+        int cores = Runtime.getRuntime().availableProcessors();
+        QuizAnalyticsAPI.AnalyticsEngine sequential = new QuizAnalyticsAPI.AnalyticsEngine(false, 1, 1 << 16);
+        QuizAnalyticsAPI.AnalyticsEngine parallel = new QuizAnalyticsAPI.AnalyticsEngine(true, cores, 1 << 16);
+        
+        // Kontroller at alle gir samme svar før vi måler
+        Map<Integer, QuizAnalyticsAPI.QuizStats> expected = streamPipeline(list);
+        verify(expected, sequential.aggregate(columns));
+        verify(expected, parallel.aggregate(columns));
+        
+        double streamMillis = measure(() -> streamPipeline(list));
+        double columnMillis = measure(() -> sequential.aggregate(columns));
+        double parallelMillis = measure(() -> parallel.aggregate(columns));
+        
+        System.out.printf("Strøm-pipeline (List<QuizResult>): %8.2f ms%n", streamMillis);
+        System.out.printf("Kolonneskanning (int[]):           %8.2f ms  (%.1fx)%n",
+            columnMillis, streamMillis / columnMillis);
+        System.out.printf("Parallell skanning (%2d tråder):    %8.2f ms  (%.1fx)%n",
+            cores, parallelMillis, streamMillis / parallelMillis);
+        System.out.printf("Målt minne per rad: %.1f bytes (objekter) mot %.1f bytes (kolonner)%n",
+            (double) (afterList - before) / rows, (double) (afterColumns - afterList) / rows);
+    }
+    
+    /** Brukt heap etter GC; gjentas til to målinger er like, siden System.gc() bare er et hint. */
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        long previous = Long.MAX_VALUE;
+        for (int i = 0; i < 10; i++) {
+            System.gc();
+            long used = runtime.totalMemory() - runtime.freeMemory();
+            if (used == previous) {
+                return used;
+            }
+            previous = used;
+        }
+        return previous;
+    }
+    
+    private static void verify(Map<Integer, QuizAnalyticsAPI.QuizStats> expected,
+                               Map<Integer, QuizAnalyticsAPI.QuizAggregate> actual) {
+        for (int quizId : expected.keySet()) {
+            if (!expected.get(quizId).toJSON().equals(actual.get(quizId).toStats().toJSON())) {
+                throw new IllegalStateException("Ulikt resultat for quiz " + quizId);
+            }
+        }
+    }
+    
+    private static double measure(Runnable task) {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            task.run();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURED_ROUNDS; i++) {
+            task.run();
+        }
+        return (System.nanoTime() - start) / 1e6 / MEASURED_ROUNDS;
+    }
+    
+    /** Den opprinnelige beregningen: groupingBy, deretter fire strømmer per quiz. */
+    private static Map<Integer, QuizAnalyticsAPI.QuizStats> streamPipeline(List<QuizResult> quizResults) {
+        Map<Integer, List<QuizResult>> byQuiz = quizResults.stream()
+            .collect(Collectors.groupingBy(r -> r.quizId));
+        
+        Map<Integer, QuizAnalyticsAPI.QuizStats> result = new TreeMap<>();
+        for (int quizId : new TreeSet<>(byQuiz.keySet())) {
+            List<QuizResult> results = byQuiz.get(quizId);
+            QuizAnalyticsAPI.QuizStats stats = new QuizAnalyticsAPI.QuizStats();
+            stats.quizId = quizId;
+            stats.participantCount = results.size();
+            
+            double sum = results.stream().mapToDouble(r -> r.score).sum();
+            stats.averageScore = sum / results.size();
+            double variance = results.stream()
+                .mapToDouble(r -> Math.pow(r.score - stats.averageScore, 2))
+                .average()
+                .orElse(0);
+            stats.standardDeviation = Math.sqrt(variance);
+            stats.minScore = results.stream().mapToInt(r -> r.score).min().orElse(0);
+            stats.maxScore = results.stream().mapToInt(r -> r.score).max().orElse(0);
+            
+            result.put(quizId, stats);
+        }
+        return result;
+    }
+}
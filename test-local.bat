@@ -29,7 +29,7 @@ if exist "oppgave1" (
     cd oppgave1
     
     echo Compiling StudentAPI.java...
-    javac StudentAPI.java 2>nul
+    javac -sourcepath ..\felles -d . StudentAPI.java 2>nul
     if !ERRORLEVEL! equ 0 (
         echo   Compilation successful
         
@@ -71,7 +71,7 @@ if exist "oppgave2" (
     cd oppgave2
     
     echo Compiling UserSearchAPI.java...
-    javac UserSearchAPI.java 2>nul
+    javac -sourcepath ..\felles -d . UserSearchAPI.java 2>nul
     if !ERRORLEVEL! equ 0 (
         echo   Compilation successful
         
@@ -116,7 +116,7 @@ if exist "oppgave3" (
     copy %TESTDATA_DIR%\data\studenter.csv test_studenter.csv >nul 2>&1
     
     echo Compiling StudentCRUDAPI.java...
-    javac StudentCRUDAPI.java 2>nul
+    javac -sourcepath ..\felles -d . StudentCRUDAPI.java 2>nul
     if !ERRORLEVEL! equ 0 (
         echo   Compilation successful
         
@@ -145,7 +145,7 @@ if exist "oppgave3" (
     )
     
     REM Cleanup
-    del test_studenter.csv >nul 2>&1
+    del test_studenter.csv test_studenter.csv.* >nul 2>&1
     
     cd ..
 ) else (
@@ -165,7 +165,7 @@ if exist "oppgave4" (
     copy %TESTDATA_DIR%\data\quiz-res.csv test_quiz_res.csv >nul 2>&1
     
     echo Compiling QuizAnalyticsAPI.java...
-    javac QuizAnalyticsAPI.java 2>nul
+    javac -sourcepath ..\felles -d . QuizAnalyticsAPI.java 2>nul
     if !ERRORLEVEL! equ 0 (
         echo   Compilation successful
         
@@ -194,8 +194,8 @@ if exist "oppgave4" (
     )
     
     REM Cleanup
-    del test_studenter.csv >nul 2>&1
-    del test_quiz_res.csv >nul 2>&1
+    del test_studenter.csv test_studenter.csv.* >nul 2>&1
+    del test_quiz_res.csv test_quiz_res.csv.* >nul 2>&1
     
     cd ..
 ) else (
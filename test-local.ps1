@@ -59,7 +59,7 @@ if (Test-Path $Oppgave1Dir) {
     Push-Location $Oppgave1Dir
 
     Write-Host -NoNewline "Compiling StudentAPI.java... "
-    javac StudentAPI.java 2>$null
+    javac -sourcepath ../felles -d . StudentAPI.java 2>$null
     if ($LASTEXITCODE -eq 0) {
         Write-Host "✅" -ForegroundColor Green
 
@@ -95,9 +95,21 @@ if (Test-Path $Oppgave1Dir) {
         Stop-Process -Id $p1.Id -Force -ErrorAction SilentlyContinue
         Wait-Process -Id $p1.Id -ErrorAction SilentlyContinue
 
+        # Test 5: Samme server med NIO-fronten, to forespørsler på én forbindelse
+        $p1 = Start-Process -FilePath "java" -ArgumentList @("-Dhttp.server=nio", "StudentAPI", "9011", "$TestDataDir/data/studenter.csv") -NoNewWindow -PassThru -RedirectStandardOutput ([IO.Path]::GetTempPath() + "server.log") -RedirectStandardError ([IO.Path]::GetTempPath() + "server.err")
+        Start-Sleep -Seconds 1
+
+        Run-Test "GET /api/students/101 + /health (NIO, keep-alive)" {
+            $response = curl.exe -s http://localhost:9011/api/students/101 http://localhost:9011/health 2>$null
+            ($response -join "") -like '*"program":"CS"}{"status":"OK"}*'
+        }
+
+        Stop-Process -Id $p1.Id -Force -ErrorAction SilentlyContinue
+        Wait-Process -Id $p1.Id -ErrorAction SilentlyContinue
+
     } else {
         Write-Host "❌ Compilation failed" -ForegroundColor Red
-        $Failed += 4
+        $Failed += 5
     }
 
     Pop-Location
@@ -117,7 +129,7 @@ if (Test-Path $Oppgave2Dir) {
     Push-Location $Oppgave2Dir
 
     Write-Host -NoNewline "Compiling UserSearchAPI.java... "
-    javac UserSearchAPI.java 2>$null
+    javac -sourcepath ../felles -d . UserSearchAPI.java 2>$null
     if ($LASTEXITCODE -eq 0) {
         Write-Host "✅" -ForegroundColor Green
 
@@ -175,7 +187,7 @@ if (Test-Path $Oppgave2NYDir) {
     Push-Location $Oppgave2NYDir
 
     Write-Host -NoNewline "Compiling FileAccessAPI.java... "
-    javac FileAccessAPI.java 2>$null
+    javac -sourcepath ../felles -d . FileAccessAPI.java 2>$null
     if ($LASTEXITCODE -eq 0) {
         Write-Host "✅" -ForegroundColor Green
 
@@ -236,13 +248,13 @@ if (Test-Path $Oppgave3Dir) {
     Copy-Item -Path "$TestDataDir/data/studenter.csv" -Destination "test_studenter.csv" -Force
 
     Write-Host -NoNewline "Compiling StudentCRUDAPI.java... "
-    javac StudentCRUDAPI.java 2>$null
+    javac -sourcepath ../felles -d . StudentCRUDAPI.java StudentShardRouter.java 2>$null
     if ($LASTEXITCODE -eq 0) {
         Write-Host "✅" -ForegroundColor Green
 
         # Start server in background
         $p3 = Start-Process -FilePath "java" -ArgumentList @("StudentCRUDAPI", "9003", "test_studenter.csv") -NoNewWindow -PassThru -RedirectStandardOutput ([IO.Path]::GetTempPath() + "server.log") -RedirectStandardError ([IO.Path]::GetTempPath() + "server.err")
-        Start-Sleep -Seconds 1
+        Start-Sleep -Seconds 2
 
         # Test 1: GET student
         Run-Test "GET /api/students/101" {
@@ -268,17 +280,51 @@ if (Test-Path $Oppgave3Dir) {
             $response | Select-String "NewStudent" -Quiet
         }
 
-        # Kill server
-        Stop-Process -Id $p3.Id -Force -ErrorAction SilentlyContinue
-        Wait-Process -Id $p3.Id -ErrorAction SilentlyContinue
+        # Test 5: Lesereplika (StudentAPI fra oppgave1) som følger loggen til serveren
+        Push-Location ../oppgave1
+        javac -sourcepath ../felles -d . StudentAPI.java 2>$null
+        Pop-Location
+        $p3f = Start-Process -FilePath "java" -ArgumentList @("-cp", "../oppgave1", "StudentAPI", "9033", "--follow", "http://localhost:9003") -NoNewWindow -PassThru -RedirectStandardOutput ([IO.Path]::GetTempPath() + "replica.log") -RedirectStandardError ([IO.Path]::GetTempPath() + "replica.err")
+        Start-Sleep -Seconds 1
+        curl.exe -s -X PUT -H "Content-Type: application/json" -d '{"name":"Replicated","program":"EE"}' http://localhost:9003/api/students/102 2>$null | Out-Null
+        Start-Sleep -Seconds 1
+
+        Run-Test "GET /api/students/102 from a read replica" {
+            $response = curl.exe -s http://localhost:9033/api/students/102 2>$null
+            $health = curl.exe -s http://localhost:9033/health 2>$null
+            ($response | Select-String "Replicated" -Quiet) -and ($health | Select-String '"connected":true' -Quiet)
+        }
+
+        Stop-Process -Id $p3f.Id -Force -ErrorAction SilentlyContinue
+        Wait-Process -Id $p3f.Id -ErrorAction SilentlyContinue
+
+        # Test 6: Ruter foran serveren; legg til en tom shard og flytt studenter dit
+        New-Item -Path "test_shard2.csv" -ItemType File -Force | Out-Null
+        $p3b = Start-Process -FilePath "java" -ArgumentList @("StudentCRUDAPI", "9013", "test_shard2.csv") -NoNewWindow -PassThru -RedirectStandardOutput ([IO.Path]::GetTempPath() + "shard.log") -RedirectStandardError ([IO.Path]::GetTempPath() + "shard.err")
+        $p3r = Start-Process -FilePath "java" -ArgumentList @("StudentShardRouter", "9023", "http://localhost:9003") -NoNewWindow -PassThru -RedirectStandardOutput ([IO.Path]::GetTempPath() + "router.log") -RedirectStandardError ([IO.Path]::GetTempPath() + "router.err")
+        Start-Sleep -Seconds 2
+        curl.exe -s -X POST "http://localhost:9023/admin/shards?url=http://localhost:9013" 2>$null | Out-Null
+        Start-Sleep -Seconds 1
+
+        Run-Test "GET /api/students via router after adding a shard" {
+            $all = curl.exe -s http://localhost:9023/api/students 2>$null
+            $moved = curl.exe -s http://localhost:9013/api/students 2>$null
+            ([regex]::Matches($all, '"id"').Count -eq 6) -and ([regex]::Matches($moved, '"id"').Count -gt 0)
+        }
+
+        # Kill servers
+        foreach ($p in @($p3r, $p3b, $p3)) {
+            Stop-Process -Id $p.Id -Force -ErrorAction SilentlyContinue
+            Wait-Process -Id $p.Id -ErrorAction SilentlyContinue
+        }
 
     } else {
         Write-Host "❌ Compilation failed" -ForegroundColor Red
-        $Failed += 4
+        $Failed += 6
     }
 
     # Cleanup
-    Remove-Item -Path "test_studenter.csv" -Force -ErrorAction SilentlyContinue
+    Remove-Item -Path "test_studenter.csv*", "test_shard2.csv*" -Force -ErrorAction SilentlyContinue
 
     Pop-Location
 } else {
@@ -301,7 +347,7 @@ if (Test-Path $Oppgave4Dir) {
     Copy-Item -Path "$TestDataDir/data/quiz-res.csv" -Destination "test_quiz_res.csv" -Force
 
     Write-Host -NoNewline "Compiling QuizAnalyticsAPI.java... "
-    javac QuizAnalyticsAPI.java 2>$null
+    javac -sourcepath ../felles -d . QuizAnalyticsAPI.java 2>$null
     if ($LASTEXITCODE -eq 0) {
         Write-Host "✅" -ForegroundColor Green
 
@@ -335,18 +381,68 @@ if (Test-Path $Oppgave4Dir) {
             $response | Select-String "error" -Quiet
         }
 
+        # Test 5: Program-stats etter DELETE skal være lik en full ny beregning fra test-dataene
+        Run-Test "GET /api/analytics/program-stats" {
+            $response = curl.exe -s http://localhost:9004/api/analytics/program-stats 2>$null
+            $response -eq '[{"program":"CS","students":1,"results":3,"average_percentage":78.33},{"program":"EE","students":2,"results":6,"average_percentage":92.50},{"program":"PSY","students":1,"results":3,"average_percentage":88.33}]'
+        }
+
         # Kill server
         Stop-Process -Id $p4.Id -Force -ErrorAction SilentlyContinue
         Wait-Process -Id $p4.Id -ErrorAction SilentlyContinue
 
+        # Test 6: Stopp etter at komprimeringen har skrevet quiz-filen, men før loggsegmentet
+        # er slettet (segmentet legges tilbake); omstarten skal ikke telle resultatet to ganger.
+        # Stop-Process kjører ikke shutdown hooks, så her komprimerer bakgrunnstråden.
+        $p4 = Start-Process -FilePath "java" -ArgumentList @("-Dcompaction.interval=3", "QuizAnalyticsAPI", "9004", "test_studenter.csv", "test_quiz_res.csv") -NoNewWindow -PassThru -RedirectStandardOutput ([IO.Path]::GetTempPath() + "server.log") -RedirectStandardError ([IO.Path]::GetTempPath() + "server.err")
+        Start-Sleep -Seconds 1
+        curl.exe -s -X POST -d '{"quiz_id":9,"student_id":102,"score":50,"max_score":100}' http://localhost:9004/api/quiz-results 2>$null | Out-Null
+        New-Item -ItemType Directory -Path "test_crash" -Force | Out-Null
+        Copy-Item -Path "test_quiz_res.csv.log.*" -Destination "test_crash" -Force
+        Start-Sleep -Seconds 3
+        Stop-Process -Id $p4.Id -Force -ErrorAction SilentlyContinue
+        Wait-Process -Id $p4.Id -ErrorAction SilentlyContinue
+        Copy-Item -Path "test_crash/*" -Destination "." -Force
+        $p4 = Start-Process -FilePath "java" -ArgumentList @("QuizAnalyticsAPI", "9004", "test_studenter.csv", "test_quiz_res.csv") -NoNewWindow -PassThru -RedirectStandardOutput ([IO.Path]::GetTempPath() + "server.log") -RedirectStandardError ([IO.Path]::GetTempPath() + "server.err")
+        Start-Sleep -Seconds 1
+
+        Run-Test "POST /api/quiz-results survives an interrupted compaction once" {
+            $response = curl.exe -s http://localhost:9004/api/analytics/quiz-stats 2>$null
+            $response | Select-String '"quiz_id":9,[^}]*"participants":1}' -Quiet
+        }
+
+        Stop-Process -Id $p4.Id -Force -ErrorAction SilentlyContinue
+        Wait-Process -Id $p4.Id -ErrorAction SilentlyContinue
+
+        # Test 7: Innsending (NDJSON), DELETE og komprimering om hverandre; den inkrementelle
+        # program-statistikken skal da være nøyaktig lik en full ny join
+        $p4 = Start-Process -FilePath "java" -ArgumentList @("-Dcompaction.interval=1", "QuizAnalyticsAPI", "9004", "test_studenter.csv", "test_quiz_res.csv") -NoNewWindow -PassThru -RedirectStandardOutput ([IO.Path]::GetTempPath() + "server.log") -RedirectStandardError ([IO.Path]::GetTempPath() + "server.err")
+        Start-Sleep -Seconds 1
+        $batch = "{`"quiz_id`":5,`"student_id`":102,`"score`":40,`"max_score`":60}`n{`"quiz_id`":5,`"student_id`":103,`"score`":7,`"max_score`":9}`n"
+        $batch | curl.exe -s -X POST --data-binary '@-' http://localhost:9004/api/quiz-results 2>$null | Out-Null
+        curl.exe -s -X DELETE http://localhost:9004/api/students/103 2>$null | Out-Null
+        Start-Sleep -Seconds 2
+        $batch = "{`"quiz_id`":6,`"student_id`":104,`"score`":1,`"max_score`":3}`n{`"quiz_id`":6,`"student_id`":102,`"score`":2,`"max_score`":7}`n"
+        $batch | curl.exe -s -X POST --data-binary '@-' http://localhost:9004/api/quiz-results 2>$null | Out-Null
+        curl.exe -s -X DELETE http://localhost:9004/api/students/105 2>$null | Out-Null
+
+        Run-Test "GET /api/analytics/program-stats matches a full recompute" {
+            $response = curl.exe -s "http://localhost:9004/api/analytics/program-stats?verify=true" 2>$null
+            $response | Select-String '"consistent":true' -Quiet
+        }
+
+        Stop-Process -Id $p4.Id -Force -ErrorAction SilentlyContinue
+        Wait-Process -Id $p4.Id -ErrorAction SilentlyContinue
+
     } else {
         Write-Host "❌ Compilation failed" -ForegroundColor Red
-        $Failed += 4
+        $Failed += 7
     }
 
     # Cleanup
-    Remove-Item -Path "test_studenter.csv" -Force -ErrorAction SilentlyContinue
-    Remove-Item -Path "test_quiz_res.csv" -Force -ErrorAction SilentlyContinue
+    Remove-Item -Path "test_studenter.csv*" -Force -ErrorAction SilentlyContinue
+    Remove-Item -Path "test_quiz_res.csv*" -Force -ErrorAction SilentlyContinue
+    Remove-Item -Path "test_crash" -Recurse -Force -ErrorAction SilentlyContinue
 
     Pop-Location
 } else {
@@ -53,7 +53,7 @@ if [ -d "oppgave1" ]; then
     
     # Compile
     echo -n "Compiling StudentAPI.java... "
-    if javac StudentAPI.java 2>/dev/null; then
+    if javac -sourcepath ../felles -d . StudentAPI.java 2>/dev/null; then
         echo -e "${GREEN}✅${NC}"
         
         # Start server in background
@@ -81,9 +81,20 @@ if [ -d "oppgave1" ]; then
         kill $SERVER_PID 2>/dev/null
         wait $SERVER_PID 2>/dev/null
         
+        # Test 5: Samme server med NIO-fronten, to forespørsler på én forbindelse
+        java -Dhttp.server=nio StudentAPI 9011 ${TESTDATA_DIR}/data/studenter.csv > /dev/null 2>&1 &
+        SERVER_PID=$!
+        sleep 1
+        
+        run_test "GET /api/students/101 + /health (NIO, keep-alive)" \
+            "curl -s http://localhost:9011/api/students/101 http://localhost:9011/health | grep -q '\"program\":\"CS\"}{\"status\":\"OK\"}'"
+        
+        kill $SERVER_PID 2>/dev/null
+        wait $SERVER_PID 2>/dev/null
+        
     else
         echo -e "${RED}❌ Compilation failed${NC}"
-        ((FAILED+=4))
+        ((FAILED+=5))
     fi
     
     cd ..
@@ -101,7 +112,7 @@ if [ -d "oppgave2" ]; then
     
     # Compile
     echo -n "Compiling UserSearchAPI.java... "
-    if javac UserSearchAPI.java 2>/dev/null; then
+    if javac -sourcepath ../felles -d . UserSearchAPI.java 2>/dev/null; then
         echo -e "${GREEN}✅${NC}"
         
         # Start server in background
@@ -149,7 +160,7 @@ if [ -d "oppgave2" ]; then
     
     # Compile
     echo -n "Compiling FileAccessAPI.java... "
-    if javac FileAccessAPI.java 2>/dev/null; then
+    if javac -sourcepath ../felles -d . FileAccessAPI.java 2>/dev/null; then
         echo -e "${GREEN}✅${NC}"
         
         # Start server in background
@@ -205,13 +216,13 @@ if [ -d "oppgave3" ]; then
     
     # Compile
     echo -n "Compiling StudentCRUDAPI.java... "
-    if javac StudentCRUDAPI.java 2>/dev/null; then
+    if javac -sourcepath ../felles -d . StudentCRUDAPI.java StudentShardRouter.java 2>/dev/null; then
         echo -e "${GREEN}✅${NC}"
         
         # Start server in background
         java StudentCRUDAPI 9003 test_studenter.csv > /dev/null 2>&1 &
         SERVER_PID=$!
-        sleep 1
+        sleep 2
         
         # Test 1: GET student
         run_test "GET /api/students/101" \
@@ -229,17 +240,44 @@ if [ -d "oppgave3" ]; then
         run_test "POST /api/students" \
             "curl -s -X POST -H 'Content-Type: application/json' -d '{\"name\":\"NewStudent\",\"program\":\"EE\"}' http://localhost:9003/api/students | grep -q 'NewStudent'"
         
-        # Kill server
-        kill $SERVER_PID 2>/dev/null
-        wait $SERVER_PID 2>/dev/null
+        # Test 5: Lesereplika (StudentAPI fra oppgave1) som følger loggen til serveren
+        (cd ../oppgave1 && javac -sourcepath ../felles -d . StudentAPI.java 2>/dev/null)
+        java -cp ../oppgave1 StudentAPI 9033 --follow http://localhost:9003 > /dev/null 2>&1 &
+        REPLICA_PID=$!
+        sleep 1
+        curl -s -X PUT -H 'Content-Type: application/json' -d '{"name":"Replicated","program":"EE"}' http://localhost:9003/api/students/102 > /dev/null
+        sleep 1
+        
+        run_test "GET /api/students/102 from a read replica" \
+            "curl -s http://localhost:9033/api/students/102 | grep -q 'Replicated' && curl -s http://localhost:9033/health | grep -q '\"connected\":true'"
+        
+        kill $REPLICA_PID 2>/dev/null
+        wait $REPLICA_PID 2>/dev/null
+        
+        # Test 6: Ruter foran serveren; legg til en tom shard og flytt studenter dit
+        : > test_shard2.csv
+        java StudentCRUDAPI 9013 test_shard2.csv > /dev/null 2>&1 &
+        SHARD_PID=$!
+        java StudentShardRouter 9023 http://localhost:9003 > /dev/null 2>&1 &
+        ROUTER_PID=$!
+        sleep 2
+        curl -s -X POST "http://localhost:9023/admin/shards?url=http://localhost:9013" > /dev/null
+        sleep 1
+        
+        run_test "GET /api/students via router after adding a shard" \
+            "[ \$(curl -s http://localhost:9023/api/students | grep -o '\"id\"' | wc -l) -eq 6 ] && [ \$(curl -s http://localhost:9013/api/students | grep -o '\"id\"' | wc -l) -gt 0 ]"
+        
+        # Kill servers
+        kill $ROUTER_PID $SHARD_PID $SERVER_PID 2>/dev/null
+        wait $ROUTER_PID $SHARD_PID $SERVER_PID 2>/dev/null
         
     else
         echo -e "${RED}❌ Compilation failed${NC}"
-        ((FAILED+=4))
+        ((FAILED+=6))
     fi
     
     # Cleanup
-    rm -f test_studenter.csv
+    rm -f test_studenter.csv test_studenter.csv.* test_shard2.csv test_shard2.csv.*
     
     cd ..
 else
@@ -260,7 +298,7 @@ if [ -d "oppgave4" ]; then
     
     # Compile
     echo -n "Compiling QuizAnalyticsAPI.java... "
-    if javac QuizAnalyticsAPI.java 2>/dev/null; then
+    if javac -sourcepath ../felles -d . QuizAnalyticsAPI.java 2>/dev/null; then
         echo -e "${GREEN}✅${NC}"
         
         # Start server in background
@@ -284,17 +322,61 @@ if [ -d "oppgave4" ]; then
         run_test "DELETE /api/students/101" \
             "curl -s -X DELETE http://localhost:9004/api/students/101 && sleep 1 && curl -s http://localhost:9004/api/students/101 | grep -q 'error'"
         
+        # Test 5: Program-stats etter DELETE skal være lik en full ny beregning fra test-dataene
+        run_test "GET /api/analytics/program-stats" \
+            "curl -s http://localhost:9004/api/analytics/program-stats | grep -qF '[{\"program\":\"CS\",\"students\":1,\"results\":3,\"average_percentage\":78.33},{\"program\":\"EE\",\"students\":2,\"results\":6,\"average_percentage\":92.50},{\"program\":\"PSY\",\"students\":1,\"results\":3,\"average_percentage\":88.33}]'"
+        
         # Kill server
         kill $SERVER_PID 2>/dev/null
         wait $SERVER_PID 2>/dev/null
         
+        # Test 6: Stopp etter at komprimeringen har skrevet quiz-filen, men før loggsegmentet
+        # er slettet (segmentet legges tilbake); omstarten skal ikke telle resultatet to ganger
+        java QuizAnalyticsAPI 9004 test_studenter.csv test_quiz_res.csv > /dev/null 2>&1 &
+        SERVER_PID=$!
+        sleep 1
+        curl -s -X POST -d '{"quiz_id":9,"student_id":102,"score":50,"max_score":100}' http://localhost:9004/api/quiz-results > /dev/null
+        mkdir -p test_crash && cp test_quiz_res.csv.log.* test_crash/
+        kill $SERVER_PID 2>/dev/null
+        wait $SERVER_PID 2>/dev/null
+        cp test_crash/* .
+        java QuizAnalyticsAPI 9004 test_studenter.csv test_quiz_res.csv > /dev/null 2>&1 &
+        SERVER_PID=$!
+        sleep 1
+        
+        run_test "POST /api/quiz-results survives an interrupted compaction once" \
+            "curl -s http://localhost:9004/api/analytics/quiz-stats | grep -q '\"quiz_id\":9,[^}]*\"participants\":1}'"
+        
+        kill $SERVER_PID 2>/dev/null
+        wait $SERVER_PID 2>/dev/null
+        
+        # Test 7: Innsending (NDJSON), DELETE og komprimering om hverandre; den inkrementelle
+        # program-statistikken skal da være nøyaktig lik en full ny join
+        java -Dcompaction.interval=1 QuizAnalyticsAPI 9004 test_studenter.csv test_quiz_res.csv > /dev/null 2>&1 &
+        SERVER_PID=$!
+        sleep 1
+        printf '%s\n' '{"quiz_id":5,"student_id":102,"score":40,"max_score":60}' '{"quiz_id":5,"student_id":103,"score":7,"max_score":9}' \
+            | curl -s -X POST --data-binary @- http://localhost:9004/api/quiz-results > /dev/null
+        curl -s -X DELETE http://localhost:9004/api/students/103 > /dev/null
+        sleep 2
+        printf '%s\n' '{"quiz_id":6,"student_id":104,"score":1,"max_score":3}' '{"quiz_id":6,"student_id":102,"score":2,"max_score":7}' \
+            | curl -s -X POST --data-binary @- http://localhost:9004/api/quiz-results > /dev/null
+        curl -s -X DELETE http://localhost:9004/api/students/105 > /dev/null
+        
+        run_test "GET /api/analytics/program-stats matches a full recompute" \
+            "curl -s 'http://localhost:9004/api/analytics/program-stats?verify=true' | grep -q '\"consistent\":true'"
+        
+        kill $SERVER_PID 2>/dev/null
+        wait $SERVER_PID 2>/dev/null
+        
     else
         echo -e "${RED}❌ Compilation failed${NC}"
-        ((FAILED+=4))
+        ((FAILED+=7))
     fi
     
     # Cleanup
-    rm -f test_studenter.csv test_quiz_res.csv
+    rm -f test_studenter.csv test_studenter.csv.* test_quiz_res.csv test_quiz_res.csv.*
+    rm -rf test_crash
     
     cd ..
 else